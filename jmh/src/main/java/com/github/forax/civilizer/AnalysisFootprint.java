@@ -0,0 +1,44 @@
+package com.github.forax.civilizer;
+
+import java.util.HashMap;
+
+/**
+ * Measures the heap footprint of the analysis of the {@link ValueRewriter} on a synthetic corpus
+ * generated by {@link Corpus}.
+ * <pre>
+ * java -cp jmh/target/benchmarks.jar com.github.forax.civilizer.AnalysisFootprint [classCount] [mix]
+ * </pre>
+ * The class files are generated before the measure, the analyses are kept in a map like the {@link Driver} does,
+ * the footprint is the difference of the used heap after a full GC, so it's only an approximation.
+ */
+public class AnalysisFootprint {
+  private static long usedHeap() {
+    var runtime = Runtime.getRuntime();
+    for(var i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public static void main(String[] args) {
+    var classCount = args.length < 1 ? 100_000 : Integer.parseInt(args[0]);
+    var mix = args.length < 2 ? "default" : args[1];
+    Log.level(Log.Level.QUIET);
+    var classes = Corpus.parse(mix).generate(classCount, 42);
+
+    var before = usedHeap();
+    var start = System.nanoTime();
+    var classDataMap = new HashMap<String, ValueRewriter.ClassData>();
+    for(var bytecode: classes) {
+      var classData = ValueRewriter.REWRITER.analyze(bytecode);
+      classDataMap.put(ValueRewriter.REWRITER.internalName(classData), classData);
+    }
+    var end = System.nanoTime();
+    var after = usedHeap();
+
+    var footprint = after - before;
+    System.out.println(classCount + " classes analyzed in " + (end - start) / 1_000_000 + " ms");
+    System.out.println("analysis footprint " + footprint / 1_024 + " KiB, " + footprint / classCount + " bytes per class");
+    System.out.println(classDataMap.size() + " " + classes.size());  // keep the map and the corpus alive
+  }
+}
@@ -0,0 +1,336 @@
+package com.github.forax.civilizer;
+
+import com.github.forax.civilizer.prt.Parametric;
+import com.github.forax.civilizer.prt.TypeRestriction;
+import com.github.forax.civilizer.vrt.Value;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.TypeReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.objectweb.asm.Opcodes.AASTORE;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ANEWARRAY;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V21;
+
+/**
+ * Generates a synthetic corpus of class files for the benchmarks of the rewriters.
+ *
+ * Each class is either a {@code @Value} record, a {@code @Parametric} class with a graph of {@code $P} constants
+ * (a list, an anchor, a linkage and a type restriction, like the parametric tests)
+ * or a plain class, the plain classes can have putfield-heavy methods.
+ * Independently, a class can be {@code @NullMarked} and some fields and parameters are {@code @Nullable}.
+ * The fields and the parameters are typed with the other classes of the corpus,
+ * so the rewriters see references to value classes.
+ * With a nesting depth, the classes are grouped, in each group the first class is a top level class
+ * and each other class is a plain class enclosed in the previous one, either as a member class or
+ * as a local class of a method, only the top level class can be {@code @NullMarked},
+ * so the null scope of the enclosed classes is the one of the top level class.
+ * The corpus is deterministic for a given seed.
+ *
+ * @param valuePercent percentage of value records.
+ * @param parametricPercent percentage of parametric classes.
+ * @param nullMarkedPercent percentage of null marked classes.
+ * @param putfieldPercent percentage of the plain classes with putfield-heavy methods.
+ * @param nestingDepth number of enclosed classes of a top level class.
+ */
+record Corpus(int valuePercent, int parametricPercent, int nullMarkedPercent, int putfieldPercent, int nestingDepth) {
+  Corpus {
+    if (valuePercent < 0 || parametricPercent < 0 || nullMarkedPercent < 0 || putfieldPercent < 0 || nestingDepth < 0 ||
+        valuePercent + parametricPercent > 100 || nullMarkedPercent > 100 || putfieldPercent > 100) {
+      throw new IllegalArgumentException("invalid mix " + this);
+    }
+  }
+
+  static final Corpus DEFAULT = new Corpus(10, 10, 50, 30, 0);
+
+  /**
+   * Parses a mix, like {@code value=10,parametric=10,nullMarked=50,putfield=30,depth=0},
+   * the missing values are the ones of {@link #DEFAULT}, "default" is the default mix.
+   */
+  static Corpus parse(String mix) {
+    var valuePercent = DEFAULT.valuePercent;
+    var parametricPercent = DEFAULT.parametricPercent;
+    var nullMarkedPercent = DEFAULT.nullMarkedPercent;
+    var putfieldPercent = DEFAULT.putfieldPercent;
+    var nestingDepth = DEFAULT.nestingDepth;
+    if (!mix.equals("default")) {
+      for(var token: mix.split(",")) {
+        var index = token.indexOf('=');
+        if (index == -1) {
+          throw new IllegalArgumentException("invalid mix " + mix);
+        }
+        var value = Integer.parseInt(token.substring(index + 1).strip());
+        switch (token.substring(0, index).strip().toLowerCase(Locale.ROOT)) {
+          case "value" -> valuePercent = value;
+          case "parametric" -> parametricPercent = value;
+          case "nullmarked" -> nullMarkedPercent = value;
+          case "putfield" -> putfieldPercent = value;
+          case "depth" -> nestingDepth = value;
+          default -> throw new IllegalArgumentException("invalid mix " + mix);
+        }
+      }
+    }
+    return new Corpus(valuePercent, parametricPercent, nullMarkedPercent, putfieldPercent, nestingDepth);
+  }
+
+  private enum Kind { VALUE, PARAMETRIC, PLAIN }
+
+  private static final String PARAMETRIC_DESCRIPTOR = Parametric.class.descriptorString();
+  private static final String TYPE_RESTRICTION_DESCRIPTOR = TypeRestriction.class.descriptorString();
+  private static final String VALUE_DESCRIPTOR = Value.class.descriptorString();
+  private static final String NULL_MARKED_DESCRIPTOR = NullMarked.class.descriptorString();
+  private static final String NULLABLE_DESCRIPTOR = Nullable.class.descriptorString();
+
+  private static final int FIELD_COUNT = 4;
+  private static final int METHOD_COUNT = 6;
+
+  private static String className(int index) {
+    return "synthetic/p" + index / 100 + "/C" + index;
+  }
+
+  /**
+   * The enclosing class of a class, and the enclosing method or null for a member class.
+   */
+  private record Enclosing(String owner, String methodName, String methodDescriptor) {}
+
+  /**
+   * Returns the level of a class in its group, 0 for a top level class.
+   */
+  private int nestingLevel(int index) {
+    return index % (nestingDepth + 1);
+  }
+
+  /**
+   * Generates the class files of the corpus.
+   */
+  List<byte[]> generate(int classCount, long seed) {
+    var random = new Random(seed);
+    var kinds = new Kind[classCount];
+    for(var i = 0; i < classCount; i++) {
+      var percent = random.nextInt(100);
+      kinds[i] = nestingLevel(i) != 0 ? Kind.PLAIN :
+          percent < valuePercent ? Kind.VALUE : percent < valuePercent + parametricPercent ? Kind.PARAMETRIC : Kind.PLAIN;
+    }
+    var classes = new ArrayList<byte[]>(classCount);
+    String[] previousFieldTypes = null;
+    for(var i = 0; i < classCount; i++) {
+      var level = nestingLevel(i);
+      var nullMarked = random.nextInt(100) < nullMarkedPercent && level == 0;
+      var putfield = random.nextInt(100) < putfieldPercent;
+      var fieldTypes = new String[FIELD_COUNT];
+      for(var j = 0; j < FIELD_COUNT; j++) {
+        var type = random.nextInt(classCount + 2);
+        fieldTypes[j] = type == classCount ? "Ljava/lang/String;" : type == classCount + 1 ? "I" : "L" + className(type) + ";";
+      }
+      // a class enclosed in a plain class is a local class of the method update0 one time out of two
+      var enclosing = level == 0 ? null :
+          level % 2 == 0 ? new Enclosing(className(i - 1), "update0", constructorDescriptor(previousFieldTypes)) :
+          new Enclosing(className(i - 1), null, null);
+      classes.add(switch (kinds[i]) {
+        case VALUE -> valueRecord(className(i), nullMarked, fieldTypes);
+        case PARAMETRIC -> parametricClass(className(i), nullMarked, fieldTypes);
+        case PLAIN -> plainClass(className(i), enclosing, nullMarked, putfield, fieldTypes, random);
+      });
+      previousFieldTypes = fieldTypes;
+    }
+    return classes;
+  }
+
+  private static void annotations(ClassWriter writer, boolean nullMarked, String... descriptors) {
+    if (nullMarked) {
+      writer.visitAnnotation(NULL_MARKED_DESCRIPTOR, true).visitEnd();
+    }
+    for(var descriptor: descriptors) {
+      writer.visitAnnotation(descriptor, true).visitEnd();
+    }
+  }
+
+  private static void fields(ClassWriter writer, int access, String[] fieldTypes) {
+    for(var i = 0; i < fieldTypes.length; i++) {
+      var fv = writer.visitField(access, "field" + i, fieldTypes[i], null, null);
+      if (i % 3 == 2 && fieldTypes[i].startsWith("L")) {
+        fv.visitTypeAnnotation(TypeReference.newTypeReference(TypeReference.FIELD).getValue(), null, NULLABLE_DESCRIPTOR, true).visitEnd();
+      }
+      fv.visitEnd();
+    }
+  }
+
+  private static String constructorDescriptor(String[] fieldTypes) {
+    return Type.getMethodDescriptor(Type.VOID_TYPE, Arrays.stream(fieldTypes).map(Type::getType).toArray(Type[]::new));
+  }
+
+  /**
+   * Stores the parameters of a constructor or a method in the fields, starting at the slot 1.
+   */
+  private static void storeFields(MethodVisitor mv, String internalName, String[] fieldTypes) {
+    for(var i = 0; i < fieldTypes.length; i++) {
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitVarInsn(Type.getType(fieldTypes[i]).getOpcode(ILOAD), i + 1);
+      mv.visitFieldInsn(PUTFIELD, internalName, "field" + i, fieldTypes[i]);
+    }
+  }
+
+  private static void accessors(ClassWriter writer, String internalName, String[] fieldTypes) {
+    for(var i = 0; i < fieldTypes.length; i++) {
+      var mv = writer.visitMethod(ACC_PUBLIC, "field" + i, "()" + fieldTypes[i], null, null);
+      mv.visitCode();
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitFieldInsn(GETFIELD, internalName, "field" + i, fieldTypes[i]);
+      mv.visitInsn(Type.getType(fieldTypes[i]).getOpcode(IRETURN));
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+  }
+
+  private static byte[] valueRecord(String internalName, boolean nullMarked, String[] fieldTypes) {
+    var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(V21, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, internalName, null, "java/lang/Record", null);
+    annotations(writer, nullMarked, VALUE_DESCRIPTOR);
+    fields(writer, ACC_PRIVATE | ACC_FINAL, fieldTypes);
+    var mv = writer.visitMethod(ACC_PUBLIC, "<init>", constructorDescriptor(fieldTypes), null, null);
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Record", "<init>", "()V", false);
+    storeFields(mv, internalName, fieldTypes);
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    accessors(writer, internalName, fieldTypes);
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static byte[] parametricClass(String internalName, boolean nullMarked, String[] fieldTypes) {
+    var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(V21, ACC_PUBLIC | ACC_SUPER, internalName, null, "java/lang/Object", null);
+    annotations(writer, nullMarked);
+    var av = writer.visitAnnotation(PARAMETRIC_DESCRIPTOR, true);
+    av.visit("value", "P1");
+    av.visitEnd();
+
+    // same constant graph as SimpleListTest
+    var constants = List.of(
+        "list Ljava/lang/Object;",
+        "mh Lcom/github/forax/civilizer/prt/JDK; 'erase (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object; P0;",
+        "anchor P1;",
+        "list.get P2; 0",
+        "linkage P3;",
+        "restriction P3;");
+    for(var i = 0; i < constants.size(); i++) {
+      writer.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "$P" + i, "Ljava/lang/String;", null, constants.get(i)).visitEnd();
+    }
+    fields(writer, ACC_PRIVATE, fieldTypes);
+    writer.visitField(ACC_PRIVATE, "elements", "[Ljava/lang/Object;", null, null).visitEnd();
+
+    var mv = writer.visitMethod(ACC_PUBLIC, "<init>", constructorDescriptor(fieldTypes), null, null);
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    storeFields(mv, internalName, fieldTypes);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitLdcInsn("P4");
+    mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "intern", "()Ljava/lang/String;", false);
+    mv.visitInsn(POP);
+    mv.visitIntInsn(BIPUSH, 16);
+    mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+    mv.visitFieldInsn(PUTFIELD, internalName, "elements", "[Ljava/lang/Object;");
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    mv = writer.visitMethod(ACC_PUBLIC, "add", "(Ljava/lang/Object;)V", null, null);
+    var restriction = mv.visitAnnotation(TYPE_RESTRICTION_DESCRIPTOR, false);
+    restriction.visit("value", "P5");
+    restriction.visitEnd();
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitFieldInsn(GETFIELD, internalName, "elements", "[Ljava/lang/Object;");
+    mv.visitInsn(ICONST_0);
+    mv.visitVarInsn(ALOAD, 1);
+    mv.visitInsn(AASTORE);
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    accessors(writer, internalName, fieldTypes);
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static byte[] plainClass(String internalName, Enclosing enclosing, boolean nullMarked, boolean putfield, String[] fieldTypes, Random random) {
+    var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(V21, ACC_PUBLIC | ACC_SUPER, internalName, null, "java/lang/Object", null);
+    if (enclosing != null && enclosing.methodName != null) {
+      writer.visitOuterClass(enclosing.owner, enclosing.methodName, enclosing.methodDescriptor);
+    }
+    annotations(writer, nullMarked);
+    if (enclosing != null) {
+      var simpleName = internalName.substring(internalName.lastIndexOf('/') + 1);
+      if (enclosing.methodName == null) {
+        writer.visitInnerClass(internalName, enclosing.owner, simpleName, ACC_PUBLIC | ACC_STATIC);
+      } else {
+        writer.visitInnerClass(internalName, null, simpleName, 0);
+      }
+    }
+    fields(writer, ACC_PRIVATE, fieldTypes);
+
+    var mv = writer.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    var setterDescriptor = constructorDescriptor(fieldTypes);
+    for(var i = 0; i < METHOD_COUNT; i++) {
+      mv = writer.visitMethod(ACC_PUBLIC, "update" + i, setterDescriptor, null, null);
+      if (random.nextInt(4) == 0) {
+        mv.visitTypeAnnotation(TypeReference.newFormalParameterReference(0).getValue(), null, NULLABLE_DESCRIPTOR, true).visitEnd();
+      }
+      mv.visitCode();
+      // a putfield-heavy method stores all the fields several times
+      for(var j = 0; j < (putfield ? 4 : 1); j++) {
+        storeFields(mv, internalName, fieldTypes);
+      }
+      mv.visitInsn(RETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+    accessors(writer, internalName, fieldTypes);
+
+    mv = writer.visitMethod(ACC_PUBLIC, "toString", "()Ljava/lang/String;", null, null);
+    mv.visitCode();
+    mv.visitLdcInsn(internalName);
+    mv.visitInsn(ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+}
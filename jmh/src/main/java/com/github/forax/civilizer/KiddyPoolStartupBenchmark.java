@@ -0,0 +1,126 @@
+package com.github.forax.civilizer;
+
+import com.github.forax.civilizer.prt.KiddyPoolTemplate;
+import com.github.forax.civilizer.startup.StartupApp;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * Startup time of an application that creates the first species of a parametric class,
+ * with the kiddy pool template stored in the class by the rewriter ({@code template=true})
+ * or computed at runtime by reading and parsing the class file with ASM ({@code template=false}).
+ *
+ * The classes of {@link StartupApp} are rewritten at build time (in the setup) then each invocation
+ * of the benchmark launches a new VM that runs the application.
+ * <pre>
+ * cd jmh
+ * java -jar target/benchmarks.jar KiddyPoolStartupBenchmark
+ * </pre>
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = { "--enable-preview" })
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class KiddyPoolStartupBenchmark {
+  @Param({ "true", "false" })
+  public boolean template;
+
+  private ProcessBuilder processBuilder;
+
+  private static byte[] bytecode(Class<?> type) {
+    var name = "/" + type.getName().replace('.', '/') + ".class";
+    try(var input = KiddyPoolStartupBenchmark.class.getResourceAsStream(name)) {
+      if (input == null) {
+        throw new IllegalStateException("no class file for " + type.getName());
+      }
+      return input.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] removeKiddyPoolTemplate(byte[] bytecode) {
+    var reader = new ClassReader(bytecode);
+    var writer = new ClassWriter(reader, 0);
+    reader.accept(new ClassVisitor(ASM9, writer) {
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        if (name.equals(KiddyPoolTemplate.ACCESSOR_NAME)) {
+          return null;
+        }
+        return super.visitMethod(access, name, descriptor, signature, exceptions);
+      }
+    }, 0);
+    return writer.toByteArray();
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Log.level(Log.Level.QUIET);
+    var classes = Arrays.stream(StartupApp.class.getNestMembers()).map(KiddyPoolStartupBenchmark::bytecode).toList();
+    var rewriter = AllRewriter.REWRITER;
+    var classDataMap = new HashMap<String, AllRewriter.ClassData>();
+    for(var bytecode: classes) {
+      var classData = rewriter.analyze(bytecode);
+      classDataMap.put(rewriter.internalName(classData), classData);
+    }
+    var analysis = rewriter.analysis(classDataMap);
+
+    var folder = Files.createTempDirectory("kiddy-pool-startup");
+    for(var bytecode: classes) {
+      var rewritten = rewriter.rewrite(bytecode, analysis).orElse(bytecode);
+      if (!template) {
+        rewritten = removeKiddyPoolTemplate(rewritten);
+      }
+      var path = folder.resolve(new ClassReader(rewritten).getClassName() + ".class");
+      Files.createDirectories(path.getParent());
+      Files.write(path, rewritten);
+    }
+
+    // the rewritten classes are found before the classes of the benchmark jar
+    var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    processBuilder = new ProcessBuilder(java,
+        "--enable-preview",
+        "--add-exports=java.base/jdk.internal.vm.annotation=ALL-UNNAMED",
+        "--add-exports=java.base/jdk.internal.value=ALL-UNNAMED",
+        "-cp", folder + File.pathSeparator + System.getProperty("java.class.path"),
+        StartupApp.class.getName())
+        .inheritIO();
+  }
+
+  @Benchmark
+  public int startup() throws IOException, InterruptedException {
+    var exitCode = processBuilder.start().waitFor();
+    if (exitCode != 0) {
+      throw new IllegalStateException("the application exits with " + exitCode);
+    }
+    return exitCode;
+  }
+}
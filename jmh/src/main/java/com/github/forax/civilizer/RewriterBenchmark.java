@@ -0,0 +1,151 @@
+package com.github.forax.civilizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the rewriters on a synthetic corpus generated by {@link Corpus}.
+ *
+ * The benchmarks {@code analyzeClass} and {@code rewriteClass} measure the two phases one class at a time
+ * (cycling over the corpus), the benchmarks {@code endToEnd} and {@code endToEndParallel} measure
+ * the analysis and the rewrite of the whole corpus in memory, like the {@link Driver} does without the file system.
+ *
+ * The mix {@code depth=16} generates deeply nested classes that inherit the null scope of their top level class.
+ *
+ * <pre>
+ * java -jar jmh/target/benchmarks.jar -p rewriter=value -p classCount=10000 -p mix=value=50,parametric=0
+ * </pre>
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "--enable-preview" })
+@State(Scope.Benchmark)
+public class RewriterBenchmark {
+  @Param({ "value", "parametric", "all" })
+  public String rewriter;
+
+  @Param({ "1000" })
+  public int classCount;
+
+  @Param({ "default", "depth=16" })
+  public String mix;
+
+  private Pass<?, ?> pass;
+  private int index;
+
+  /**
+   * Binds the corpus with a rewriter, the analysis is computed once so {@code rewriteClass} only measures the rewrite.
+   */
+  private static final class Pass<D, A> {
+    private final Driver.Rewriter<D, A> rewriter;
+    private final List<byte[]> classes;
+    private final A analysis;
+
+    Pass(Driver.Rewriter<D, A> rewriter, List<byte[]> classes) {
+      this.rewriter = rewriter;
+      this.classes = classes;
+      this.analysis = analyzeAll(classes, false);
+    }
+
+    D analyze(int index) {
+      return rewriter.analyze(classes.get(index));
+    }
+
+    Optional<byte[]> rewrite(int index) {
+      return rewriter.rewrite(classes.get(index), analysis);
+    }
+
+    A analyzeAll(List<byte[]> classes, boolean parallel) {
+      Map<String, D> classDataMap;
+      if (parallel) {
+        var concurrentMap = new ConcurrentHashMap<String, D>();
+        classes.parallelStream().forEach(bytecode -> {
+          var classData = rewriter.analyze(bytecode);
+          concurrentMap.put(rewriter.internalName(classData), classData);
+        });
+        classDataMap = concurrentMap;
+      } else {
+        classDataMap = new HashMap<>();
+        for(var bytecode: classes) {
+          var classData = rewriter.analyze(bytecode);
+          classDataMap.put(rewriter.internalName(classData), classData);
+        }
+      }
+      return rewriter.analysis(classDataMap);
+    }
+
+    void endToEnd(boolean parallel, Blackhole blackhole) {
+      var analysis = analyzeAll(classes, parallel);
+      var stream = parallel ? classes.parallelStream() : classes.stream();
+      stream.forEach(bytecode -> blackhole.consume(rewriter.rewrite(bytecode, analysis)));
+    }
+  }
+
+  private static Driver.Rewriter<?, ?> rewriter(String name) {
+    return switch (name) {
+      case "value" -> ValueRewriter.REWRITER;
+      case "parametric" -> ParametricRewriter.REWRITER;
+      case "all" -> AllRewriter.REWRITER;
+      default -> throw new IllegalArgumentException("unknown rewriter " + name);
+    };
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Log.level(Log.Level.QUIET);
+    var classes = Corpus.parse(mix).generate(classCount, 42);
+    pass = new Pass<>(rewriter(rewriter), classes);
+  }
+
+  private int next() {
+    var index = this.index;
+    this.index = index + 1 == classCount ? 0 : index + 1;
+    return index;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Object analyzeClass() {
+    return pass.analyze(next());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Optional<byte[]> rewriteClass() {
+    return pass.rewrite(next());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void endToEnd(Blackhole blackhole) {
+    pass.endToEnd(false, blackhole);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void endToEndParallel(Blackhole blackhole) {
+    pass.endToEnd(true, blackhole);
+  }
+}
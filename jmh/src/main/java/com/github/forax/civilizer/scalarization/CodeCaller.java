@@ -0,0 +1,19 @@
+package com.github.forax.civilizer.scalarization;
+
+/**
+ * A class that only uses {@link Complex} in the code of its methods,
+ * so Complex is listed in its LoadableDescriptors attribute only if the code is considered.
+ */
+final class CodeCaller {
+  private CodeCaller() {
+    throw new AssertionError();
+  }
+
+  static double sum(double[] res, double[] ims) {
+    var sum = new Complex(0, 0);
+    for(var i = 0; i < res.length; i++) {
+      sum = sum.add(new Complex(res[i], ims[i]));
+    }
+    return sum.re() + sum.im();
+  }
+}
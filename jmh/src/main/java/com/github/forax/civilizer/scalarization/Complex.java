@@ -0,0 +1,15 @@
+package com.github.forax.civilizer.scalarization;
+
+import com.github.forax.civilizer.vrt.Value;
+import org.openjdk.jmh.annotations.CompilerControl;
+
+/**
+ * A value class with a method that is never inlined, so the calls use the calling convention of the VM.
+ */
+@Value
+public record Complex(double re, double im) {
+  @CompilerControl(CompilerControl.Mode.DONT_INLINE)
+  public Complex add(Complex complex) {
+    return new Complex(re + complex.re, im + complex.im);
+  }
+}
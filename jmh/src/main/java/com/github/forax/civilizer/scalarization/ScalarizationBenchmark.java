@@ -0,0 +1,64 @@
+package com.github.forax.civilizer.scalarization;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocations of a loop that calls a method of a value class which is not inlined,
+ * from a class that uses the value class in a method signature ({@link SignatureCaller})
+ * and from a class that only uses it in the code of its methods ({@link CodeCaller}).
+ *
+ * The classes of this package are rewritten by the agent when they are loaded, if the value class
+ * is listed in the LoadableDescriptors attribute of the caller, the call uses the scalarized calling convention
+ * and the loop does not allocate, so the two benchmarks should report the same {@code gc.alloc.rate.norm}.
+ * <pre>
+ * cd jmh
+ * java -jar target/benchmarks.jar ScalarizationBenchmark -prof gc
+ * </pre>
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+    "--enable-preview",
+    "--add-exports=java.base/jdk.internal.vm.annotation=ALL-UNNAMED",
+    "--add-exports=java.base/jdk.internal.value=ALL-UNNAMED",
+    "-javaagent:target/benchmarks.jar=com.github.forax.civilizer.scalarization" })
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ScalarizationBenchmark {
+  @Param({ "1000" })
+  public int size;
+
+  private double[] res;
+  private double[] ims;
+
+  @Setup
+  public void setup() {
+    var random = new Random(42);
+    res = random.doubles(size).toArray();
+    ims = random.doubles(size).toArray();
+  }
+
+  @Benchmark
+  public double signatureCaller() {
+    return SignatureCaller.sum(res, ims);
+  }
+
+  @Benchmark
+  public double codeCaller() {
+    return CodeCaller.sum(res, ims);
+  }
+}
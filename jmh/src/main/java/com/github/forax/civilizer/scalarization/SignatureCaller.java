@@ -0,0 +1,23 @@
+package com.github.forax.civilizer.scalarization;
+
+/**
+ * A class that uses {@link Complex} in the signature of a method,
+ * so Complex is listed in its LoadableDescriptors attribute even if only the signatures are considered.
+ */
+final class SignatureCaller {
+  private SignatureCaller() {
+    throw new AssertionError();
+  }
+
+  static Complex zero() {
+    return new Complex(0, 0);
+  }
+
+  static double sum(double[] res, double[] ims) {
+    var sum = zero();
+    for(var i = 0; i < res.length; i++) {
+      sum = sum.add(new Complex(res[i], ims[i]));
+    }
+    return sum.re() + sum.im();
+  }
+}
@@ -0,0 +1,28 @@
+package com.github.forax.civilizer.specialization;
+
+import com.github.forax.civilizer.prt.Parametric;
+import com.github.forax.civilizer.prt.TypeRestriction;
+
+/**
+ * A parametric cell, the type restriction of {@link #set(Object)} is a constant of the kiddy pool
+ * so the call site that checks the restriction sees one kiddy pool per species.
+ */
+@Parametric("P1")
+public class Cell<E> {
+  private static final String $P0 = "list Ljava/lang/Object;";
+  private static final String $P1 = "mh Lcom/github/forax/civilizer/prt/JDK; 'erase (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object; P0;";
+  private static final String $P2 = "anchor P1;";
+  private static final String $P3 = "list.get P2; 0";
+  private static final String $P4 = "restriction P3;";
+
+  private E element;
+
+  @TypeRestriction("P4")
+  public void set(E element) {
+    this.element = element;
+  }
+
+  public E get() {
+    return element;
+  }
+}
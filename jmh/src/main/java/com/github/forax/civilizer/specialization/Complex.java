@@ -0,0 +1,15 @@
+package com.github.forax.civilizer.specialization;
+
+import com.github.forax.civilizer.vrt.ImplicitlyConstructible;
+import com.github.forax.civilizer.vrt.Value;
+
+/**
+ * An implicitly constructible value class, an array of Complex can be flattened.
+ */
+@Value
+@ImplicitlyConstructible
+public record Complex(double re, double im) {
+  public Complex add(Complex complex) {
+    return new Complex(re + complex.re, im + complex.im);
+  }
+}
@@ -0,0 +1,49 @@
+package com.github.forax.civilizer.specialization;
+
+import com.github.forax.civilizer.prt.Parametric;
+import com.github.forax.civilizer.prt.TypeRestriction;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A parametric list, the array of the elements is created by the linkage of the class,
+ * so it is flattened if the type argument is implicitly constructible.
+ */
+@Parametric("P1")
+public class SimpleList<E> {
+  private static final String $P0 = "list Ljava/lang/Object;";
+  private static final String $P1 = "mh Lcom/github/forax/civilizer/prt/JDK; 'erase (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object; P0;";
+  private static final String $P2 = "anchor P1;";
+  private static final String $P3 = "list.get P2; 0";
+  private static final String $P4 = "linkage P3;";
+  private static final String $P5 = "restriction P3;";
+
+  private E[] elements;
+  private int size;
+
+  public SimpleList(int capacity) {
+    super(); // otherwise the constant below will be attached to super()
+    "P4".intern();
+    @SuppressWarnings("unchecked")
+    var elements = (E[]) new Object[capacity];
+    this.elements = elements;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @TypeRestriction("P5")
+  public void add(E element) {
+    if (size == elements.length) {
+      elements = Arrays.copyOf(elements, elements.length << 1);
+    }
+    elements[size++] = element;
+  }
+
+  public E get(int index) {
+    Objects.checkIndex(index, size);
+    return elements[index];
+  }
+}
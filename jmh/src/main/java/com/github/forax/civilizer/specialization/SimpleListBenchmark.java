@@ -0,0 +1,80 @@
+package com.github.forax.civilizer.specialization;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Element access throughput of a {@code SimpleList<Complex>}, the raw list stores the elements in an array
+ * of pointers (the layout used by {@code bsm_new_array} before it created null-restricted arrays)
+ * while the specialized list stores the elements in a flat null-restricted array.
+ *
+ * The classes of this package are rewritten by the agent when they are loaded.
+ * <pre>
+ * cd jmh
+ * java -jar target/benchmarks.jar SimpleListBenchmark -prof gc
+ * </pre>
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+    "--enable-preview",
+    "--add-exports=java.base/jdk.internal.vm.annotation=ALL-UNNAMED",
+    "--add-exports=java.base/jdk.internal.value=ALL-UNNAMED",
+    "-javaagent:target/benchmarks.jar=com.github.forax.civilizer.specialization" })
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SimpleListBenchmark {
+  private static final String $P0 = "list Lcom/github/forax/civilizer/specialization/Complex;";
+  private static final String $P1 = "linkage P0;";
+
+  @Param({ "1000", "100000" })
+  public int size;
+
+  private SimpleList<Complex> rawList;
+  private SimpleList<Complex> specializedList;
+
+  @Setup
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public void setup() {
+    rawList = new SimpleList(size);
+    "P1".intern();
+    specializedList = new SimpleList<Complex>(size);
+    var random = new Random(42);
+    for(var i = 0; i < size; i++) {
+      var complex = new Complex(random.nextDouble(), random.nextDouble());
+      rawList.add(complex);
+      specializedList.add(complex);
+    }
+  }
+
+  private static Complex sum(SimpleList<Complex> list) {
+    var sum = new Complex(0.0, 0.0);
+    for(var i = 0; i < list.size(); i++) {
+      sum = sum.add(list.get(i));
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public Complex rawList() {
+    return sum(rawList);
+  }
+
+  @Benchmark
+  public Complex specializedList() {
+    return sum(specializedList);
+  }
+}
@@ -0,0 +1,194 @@
+package com.github.forax.civilizer.specialization;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a call to {@link Cell#set(Object)} depending on the number of species seen by the call site
+ * that checks the type restriction, up to 8 species the inlining cache is a chain of pointer checks,
+ * after that the call site is relinked to a lookup in a {@code ClassValue} indexed by the kiddy pool.
+ *
+ * The classes of this package are rewritten by the agent when they are loaded.
+ * <pre>
+ * cd jmh
+ * java -jar target/benchmarks.jar SpeciesCountBenchmark
+ * </pre>
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+    "--enable-preview",
+    "--add-exports=java.base/jdk.internal.vm.annotation=ALL-UNNAMED",
+    "--add-exports=java.base/jdk.internal.value=ALL-UNNAMED",
+    "-javaagent:target/benchmarks.jar=com.github.forax.civilizer.specialization" })
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class SpeciesCountBenchmark {
+  private static final String $P0 = "list Ljava/lang/Object;";
+  private static final String $P1 = "linkage P0;";
+  private static final String $P2 = "list Ljava/lang/String;";
+  private static final String $P3 = "linkage P2;";
+  private static final String $P4 = "list Ljava/lang/Integer;";
+  private static final String $P5 = "linkage P4;";
+  private static final String $P6 = "list Ljava/lang/Long;";
+  private static final String $P7 = "linkage P6;";
+  private static final String $P8 = "list Ljava/lang/Double;";
+  private static final String $P9 = "linkage P8;";
+  private static final String $P10 = "list Ljava/lang/Float;";
+  private static final String $P11 = "linkage P10;";
+  private static final String $P12 = "list Ljava/lang/Short;";
+  private static final String $P13 = "linkage P12;";
+  private static final String $P14 = "list Ljava/lang/Byte;";
+  private static final String $P15 = "linkage P14;";
+  private static final String $P16 = "list Ljava/lang/Character;";
+  private static final String $P17 = "linkage P16;";
+  private static final String $P18 = "list Ljava/lang/Boolean;";
+  private static final String $P19 = "linkage P18;";
+  private static final String $P20 = "list Ljava/math/BigInteger;";
+  private static final String $P21 = "linkage P20;";
+  private static final String $P22 = "list Ljava/math/BigDecimal;";
+  private static final String $P23 = "linkage P22;";
+  private static final String $P24 = "list Ljava/util/UUID;";
+  private static final String $P25 = "linkage P24;";
+  private static final String $P26 = "list Ljava/time/LocalDate;";
+  private static final String $P27 = "linkage P26;";
+  private static final String $P28 = "list Ljava/lang/StringBuilder;";
+  private static final String $P29 = "linkage P28;";
+  private static final String $P30 = "list Ljava/util/ArrayList;";
+  private static final String $P31 = "linkage P30;";
+
+  @Param({ "1", "2", "4", "8", "9", "16" })
+  public int speciesCount;
+
+  private Cell<Object>[] cells;
+  private Object[] values;
+
+  private static Cell<?> newCell(int index) {
+    return switch (index) {
+      case 0 -> {
+        "P1".intern();
+        yield new Cell<Object>();
+      }
+      case 1 -> {
+        "P3".intern();
+        yield new Cell<String>();
+      }
+      case 2 -> {
+        "P5".intern();
+        yield new Cell<Integer>();
+      }
+      case 3 -> {
+        "P7".intern();
+        yield new Cell<Long>();
+      }
+      case 4 -> {
+        "P9".intern();
+        yield new Cell<Double>();
+      }
+      case 5 -> {
+        "P11".intern();
+        yield new Cell<Float>();
+      }
+      case 6 -> {
+        "P13".intern();
+        yield new Cell<Short>();
+      }
+      case 7 -> {
+        "P15".intern();
+        yield new Cell<Byte>();
+      }
+      case 8 -> {
+        "P17".intern();
+        yield new Cell<Character>();
+      }
+      case 9 -> {
+        "P19".intern();
+        yield new Cell<Boolean>();
+      }
+      case 10 -> {
+        "P21".intern();
+        yield new Cell<BigInteger>();
+      }
+      case 11 -> {
+        "P23".intern();
+        yield new Cell<BigDecimal>();
+      }
+      case 12 -> {
+        "P25".intern();
+        yield new Cell<UUID>();
+      }
+      case 13 -> {
+        "P27".intern();
+        yield new Cell<LocalDate>();
+      }
+      case 14 -> {
+        "P29".intern();
+        yield new Cell<StringBuilder>();
+      }
+      case 15 -> {
+        "P31".intern();
+        yield new Cell<ArrayList>();
+      }
+      default -> throw new AssertionError("no species " + index);
+    };
+  }
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setup() {
+    var allValues = new Object[] {
+        new Object(),
+        "",
+        42,
+        42L,
+        42.0,
+        42f,
+        (short) 42,
+        (byte) 42,
+        '*',
+        true,
+        BigInteger.TEN,
+        BigDecimal.TEN,
+        new UUID(0, 42),
+        LocalDate.EPOCH,
+        new StringBuilder(),
+        new ArrayList<>()
+    };
+    cells = (Cell<Object>[]) new Cell<?>[speciesCount];
+    values = new Object[speciesCount];
+    for(var i = 0; i < speciesCount; i++) {
+      cells[i] = (Cell<Object>) newCell(i);
+      values[i] = allValues[i];
+    }
+  }
+
+  /**
+   * Calls {@code set} once per species, the score divided by {@code speciesCount} is the cost of one call.
+   */
+  @Benchmark
+  public Object set() {
+    var cells = this.cells;
+    var values = this.values;
+    for(var i = 0; i < cells.length; i++) {
+      cells[i].set(values[i]);
+    }
+    return cells[cells.length - 1].get();
+  }
+}
@@ -0,0 +1,113 @@
+package com.github.forax.civilizer.specialization;
+
+import com.github.forax.civilizer.prt.JDK;
+import com.github.forax.civilizer.prt.Location;
+import com.github.forax.civilizer.prt.Parametric;
+import com.github.forax.civilizer.prt.TypeRestriction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to create a new species of a parametric class, i.e. to define a new kiddy pool class.
+ * The location of the parametric class is captured by the bootstrap method of its anchor,
+ * so the benchmark can bypass the cache of the species and create a new species for each operation.
+ *
+ * The kiddy pool classes are never unloaded, so the benchmark uses a single shot mode
+ * with a fixed number of species per iteration.
+ *
+ * The classes of this package are rewritten by the agent when they are loaded.
+ * <pre>
+ * cd jmh
+ * java -jar target/benchmarks.jar SpeciesCreationBenchmark
+ * </pre>
+ */
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(value = 1, jvmArgsAppend = {
+    "--enable-preview",
+    "--add-exports=java.base/jdk.internal.vm.annotation=ALL-UNNAMED",
+    "--add-exports=java.base/jdk.internal.value=ALL-UNNAMED",
+    "-javaagent:target/benchmarks.jar=com.github.forax.civilizer.specialization" })
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SpeciesCreationBenchmark {
+  private static final String $P0 = "list Ljava/lang/String;";
+  private static final String $P1 = "linkage P0;";
+
+  private static final int SPECIES_PER_INVOCATION = 100;
+
+  private static volatile Location location;
+
+  /**
+   * Bootstrap method of the anchor of {@link Raw}, records the location of the class.
+   */
+  public static Object capture(Object location, Object parameters) {
+    SpeciesCreationBenchmark.location = (Location) location;
+    return JDK.identity(location, parameters);
+  }
+
+  @Parametric("P0")
+  static class Raw<T> {
+    private static final String $P0 = "mh Lcom/github/forax/civilizer/specialization/SpeciesCreationBenchmark; 'capture (Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final String $P1 = "anchor P0;";
+    private static final String $P2 = "list.get P1; 0";
+    private static final String $P3 = "restriction P2;";
+
+    private Object[] elements = new Object[16];
+    private int size;
+
+    @TypeRestriction("P3")
+    public void add(T element) {
+      if (size == elements.length) {
+        elements = Arrays.copyOf(elements, elements.length << 1);
+      }
+      elements[size++] = element;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+      Objects.checkIndex(index, size);
+      return (T) elements[index];
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(Arrays.copyOf(elements, size));
+    }
+  }
+
+  private Location rawLocation;
+
+  @Setup
+  public void setup() {
+    "P1".intern();
+    new Raw<String>();
+    rawLocation = Objects.requireNonNull(location, "the anchor of Raw was not linked");
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SPECIES_PER_INVOCATION)
+  public Object newSpecies() {
+    var parameters = List.of(String.class);
+    Object kiddyPool = null;
+    for(var i = 0; i < SPECIES_PER_INVOCATION; i++) {
+      kiddyPool = rawLocation.specialize(parameters);
+    }
+    return kiddyPool;
+  }
+}
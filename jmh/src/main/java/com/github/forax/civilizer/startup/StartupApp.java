@@ -0,0 +1,62 @@
+package com.github.forax.civilizer.startup;
+
+import com.github.forax.civilizer.prt.Parametric;
+import com.github.forax.civilizer.prt.TypeRestriction;
+
+/**
+ * A small application that creates the first species of a parametric class,
+ * launched in a new VM by {@code KiddyPoolStartupBenchmark}.
+ */
+public class StartupApp {
+  @Parametric("P1")
+  static class Box<E> {
+    private static final String $P0 = "list Ljava/lang/Object;";
+    private static final String $P1 = "mh Lcom/github/forax/civilizer/prt/JDK; 'erase (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object; P0;";
+    private static final String $P2 = "anchor P1;";
+    private static final String $P3 = "list.get P2; 0";
+    private static final String $P4 = "restriction P3;";
+
+    private E element;
+
+    @TypeRestriction("P4")
+    void set(E element) {
+      this.element = element;
+    }
+
+    E get() {
+      return element;
+    }
+  }
+
+  private static final String $P0 = "list Ljava/lang/String;";
+  private static final String $P1 = "linkage P0;";
+  private static final String $P2 = "list Ljava/lang/Integer;";
+  private static final String $P3 = "linkage P2;";
+  private static final String $P4 = "list Ljava/lang/Long;";
+  private static final String $P5 = "linkage P4;";
+  private static final String $P6 = "list Ljava/lang/Double;";
+  private static final String $P7 = "linkage P6;";
+
+  public static void main(String[] args) {
+    var sum = 0;
+    "P1".intern();
+    var box0 = new Box<String>();
+    box0.set("civilizer");
+    sum += box0.get().hashCode();
+    "P3".intern();
+    var box1 = new Box<Integer>();
+    box1.set(42);
+    sum += box1.get().hashCode();
+    "P5".intern();
+    var box2 = new Box<Long>();
+    box2.set(42L);
+    sum += box2.get().hashCode();
+    "P7".intern();
+    var box3 = new Box<Double>();
+    box3.set(42.0);
+    sum += box3.get().hashCode();
+    if (sum == 0) {
+      throw new AssertionError();
+    }
+  }
+}
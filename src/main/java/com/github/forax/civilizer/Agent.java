@@ -0,0 +1,198 @@
+package com.github.forax.civilizer;
+
+import com.github.forax.civilizer.prt.RT;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.security.ProtectionDomain;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A java agent that rewrites the classes when they are loaded instead of rewriting the class files at build time,
+ * using the same pipeline as {@link AllRewriter}.
+ * <pre>
+ *   java -javaagent:civilizer.jar[=options] ...
+ * </pre>
+ * options is a comma separated list of package prefixes, only the classes of those packages are rewritten,
+ * by default all the classes which are not loaded by the boot or the platform class loader
+ * (apart from the classes of the rewriters, their runtime and their dependencies).
+ * The option {@code stats} prints at exit the number of rewritten classes and the time spent to rewrite them.
+ * The option {@code log=level} sets the level of the messages (see {@link Log.Level}), {@code log=quiet}
+ * also silences the classes that can not be rewritten.
+ *
+ * There is no analysis of all the classes before the rewrite, the analysis of a class is done
+ * when the class is loaded or when the rewrite of another class needs it, in that case the class file
+ * is read from the class loader, the analyses are cached by class loader.
+ * So only the classes that are loaded and the classes they reference are analyzed.
+ *
+ * The rewritten bytecode of the classes that declare constants is also kept because it is needed
+ * to create the kiddy pool classes at runtime if the kiddy pool template is too big to be stored in the class
+ * (see {@link RT#bytecodeFinder(java.util.function.Function)}).
+ */
+public final class Agent {
+  private Agent() {
+    throw new AssertionError();
+  }
+
+  private static final String CIVILIZER_PREFIX = "com/github/forax/civilizer/";
+  private static final List<String> EXCLUDED_PREFIXES = List.of(
+      "org/objectweb/asm/", "org/jspecify/", CIVILIZER_PREFIX + "prt/", CIVILIZER_PREFIX + "vrt/");
+
+  private static boolean isExcluded(String internalName) {
+    return EXCLUDED_PREFIXES.stream().anyMatch(internalName::startsWith) ||
+        (internalName.startsWith(CIVILIZER_PREFIX) && internalName.indexOf('/', CIVILIZER_PREFIX.length()) == -1);
+  }
+
+  /**
+   * The analyses and the rewritten classes of a class loader.
+   */
+  private static final class LoaderState {
+    private final WeakReference<ClassLoader> loaderRef;
+    private final Predicate<String> filter;
+    private final ConcurrentHashMap<String, Optional<AllRewriter.ClassData>> classDataCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, byte[]> rewrittenMap = new ConcurrentHashMap<>();
+    private final Driver.Rewriter<AllRewriter.ClassData, AllRewriter.Analysis> rewriter = AllRewriter.rewriter(false);
+    private final AllRewriter.Analysis analysis;
+
+    private LoaderState(ClassLoader loader, Predicate<String> filter) {
+      this.loaderRef = new WeakReference<>(loader);
+      this.filter = filter;
+      this.analysis = rewriter.analysis(new AbstractMap<>() {
+        @Override
+        public AllRewriter.ClassData get(Object key) {
+          return key instanceof String internalName ? classData(internalName, null).orElse(null) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+          return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, AllRewriter.ClassData>> entrySet() {
+          // only the analyses already computed
+          return classDataCache.entrySet().stream()
+              .flatMap(entry -> entry.getValue().map(classData -> Map.entry(entry.getKey(), classData)).stream())
+              .collect(Collectors.toSet());
+        }
+      });
+    }
+
+    // the analysis is not done inside a computeIfAbsent because reading a class file may load other classes
+    private Optional<AllRewriter.ClassData> classData(String internalName, byte[] bytecode) {
+      var classData = classDataCache.get(internalName);
+      if (classData != null) {
+        return classData;
+      }
+      classData = Optional.ofNullable(analyze(internalName, bytecode));
+      var previous = classDataCache.putIfAbsent(internalName, classData);
+      return previous != null ? previous : classData;
+    }
+
+    private AllRewriter.ClassData analyze(String internalName, byte[] bytecode) {
+      if (!filter.test(internalName)) {
+        return null;
+      }
+      if (bytecode == null) {
+        var loader = loaderRef.get();
+        if (loader == null) {
+          return null;
+        }
+        try(var input = loader.getResourceAsStream(internalName + ".class")) {
+          if (input == null) {
+            return null;
+          }
+          bytecode = input.readAllBytes();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      return rewriter.analyze(bytecode);
+    }
+  }
+
+  private static final class Transformer implements ClassFileTransformer {
+    private final Predicate<String> filter;
+    private final Map<ClassLoader, LoaderState> stateMap = Collections.synchronizedMap(new WeakHashMap<>());
+    private final LongAdder rewriteCount = new LongAdder();
+    private final LongAdder rewriteNanos = new LongAdder();
+
+    private Transformer(Predicate<String> filter) {
+      this.filter = filter;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+      if (loader == null || loader == ClassLoader.getPlatformClassLoader() ||
+          className == null || classBeingRedefined != null || !filter.test(className)) {
+        return null;
+      }
+      var start = System.nanoTime();
+      try {
+        var state = stateMap.computeIfAbsent(loader, l -> new LoaderState(l, filter));
+        var classData = state.classData(className, classfileBuffer).orElseThrow();
+        var data = state.rewriter.rewrite(classfileBuffer, state.analysis);
+        if (data.isEmpty()) {
+          return null;
+        }
+        var bytecode = data.orElseThrow();
+        if (!classData.parametricClassData().condyFieldAccessors().isEmpty()) {
+          state.rewrittenMap.put(className, bytecode);
+        }
+        rewriteCount.increment();
+        return bytecode;
+      } catch (RuntimeException e) {
+        // the exceptions thrown by a transformer are ignored by the VM
+        Log.info("agent: can not rewrite " + className + " (" + e + ")");
+        return null;
+      } finally {
+        rewriteNanos.add(System.nanoTime() - start);
+      }
+    }
+
+    private byte[] rewrittenBytecode(Class<?> type) {
+      var loader = type.getClassLoader();
+      if (loader == null) {
+        return null;
+      }
+      var state = stateMap.get(loader);
+      return state == null ? null : state.rewrittenMap.get(type.getName().replace('.', '/'));
+    }
+  }
+
+  public static void premain(String agentArgs, Instrumentation instrumentation) {
+    var options = agentArgs == null ? List.<String>of() : Arrays.stream(agentArgs.split(",")).map(String::strip).filter(option -> !option.isEmpty()).toList();
+    var stats = options.contains("stats");
+    options.stream()
+        .filter(option -> option.startsWith("log="))
+        .forEach(option -> Log.level(Log.Level.parse(option.substring("log=".length()))));
+    var prefixes = options.stream()
+        .filter(option -> !option.equals("stats") && !option.startsWith("log="))
+        .map(option -> option.replace('.', '/'))
+        .toList();
+    Predicate<String> filter = internalName -> !isExcluded(internalName) &&
+        (prefixes.isEmpty() || prefixes.stream().anyMatch(internalName::startsWith));
+
+    var transformer = new Transformer(filter);
+    RT.bytecodeFinder(transformer::rewrittenBytecode);
+    instrumentation.addTransformer(transformer);
+    if (stats) {
+      Runtime.getRuntime().addShutdownHook(new Thread(() ->
+          Log.info("agent: " + transformer.rewriteCount.sum() + " classes rewritten in " + transformer.rewriteNanos.sum() / 1_000_000 + " ms")));
+    }
+  }
+}
@@ -1,12 +1,211 @@
 package com.github.forax.civilizer;
 
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
+/**
+ * Runs the {@link ParametricRewriter} then the {@link ValueRewriter} in one pipeline.
+ *
+ * Each class is read once, the two analyses are done by the same {@link ClassReader#accept},
+ * without the code of the methods, and the two rewrites are chained in front of one {@link ClassWriter}
+ * so each class is written once, the max stack and max locals of the methods are computed by the ClassWriter.
+ * The analysis of the ValueRewriter sees the class before the ParametricRewriter adds the kiddy pool parameter,
+ * so its result is adapted using the analysis of the ParametricRewriter
+ * (see {@link ValueRewriter#appendObjectParameter(ValueRewriter.ClassData, java.util.function.BiPredicate, ValueRewriter.Symbols)}).
+ */
 public class AllRewriter {
+  record ClassData(ParametricRewriter.ClassData parametricClassData, ValueRewriter.ClassData valueClassData) {}
+  record Analysis(ParametricRewriter.Analysis parametricAnalysis, ValueRewriter.Analysis valueAnalysis) {}
+
+  private static ClassData analyze(byte[] buffer, ValueRewriter.Symbols symbols) {
+    var reader = new ClassReader(buffer);
+    var box = new Object() {
+      ParametricRewriter.ClassData parametricClassData;
+      ValueRewriter.ClassData valueClassData;
+    };
+    var valueAnalyzer = ValueRewriter.analyzer(symbols, classData -> box.valueClassData = classData);
+    var analyzer = ParametricRewriter.analyzer(valueAnalyzer, classData -> box.parametricClassData = classData);
+    reader.accept(analyzer, ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+    var parametricClassData = box.parametricClassData;
+    var valueClassData = ValueRewriter.appendObjectParameter(ValueRewriter.analyzeConstructors(reader, box.valueClassData),
+        (methodName, methodDescriptor) -> ParametricRewriter.hasKiddyPoolParameter(parametricClassData, methodName, methodDescriptor), symbols);
+    return new ClassData(parametricClassData, valueClassData);
+  }
+
+  /**
+   * Returns a view of the value class data of the classes with the fields specialized by the ParametricRewriter
+   * (see {@link ParametricRewriter#specializedFields(ParametricRewriter.ClassData)}).
+   * The type kinds of the restriction classes are the ones of {@code valueClassDataMap}, so the inference
+   * has to be done before. The class data of a class with specialized fields is computed once, when first requested.
+   */
+  private static Map<String, ValueRewriter.ClassData> specializedView(Map<String, ClassData> classDataMap, Map<String, ValueRewriter.ClassData> valueClassDataMap, ValueRewriter.Symbols symbols) {
+    var specializedMap = new ConcurrentHashMap<String, ValueRewriter.ClassData>();
+    return view(classDataMap, classData -> {
+      var internalName = classData.valueClassData.internalName();
+      var specialized = specializedMap.get(internalName);
+      if (specialized != null) {
+        return specialized;
+      }
+      var valueClassData = valueClassDataMap.get(internalName);
+      var specializedFields = ParametricRewriter.specializedFields(classData.parametricClassData);
+      if (specializedFields.isEmpty()) {
+        return valueClassData;
+      }
+      // not a computeIfAbsent, the class data of the restriction classes may be computed lazily (see Agent)
+      specialized = ValueRewriter.specializeFields(valueClassData, specializedFields, valueClassDataMap, symbols);
+      var previous = specializedMap.putIfAbsent(internalName, specialized);
+      return previous != null ? previous : specialized;
+    });
+  }
+
+  private static Analysis analysis(Map<String, ClassData> classDataMap, Set<String> rewrittenSet, boolean inferImplicitlyConstructible, ValueRewriter.Symbols symbols) {
+    var valueClassDataMap = view(classDataMap, ClassData::valueClassData);
+    if (inferImplicitlyConstructible) {
+      valueClassDataMap = ValueRewriter.inferImplicitlyConstructible(new ValueRewriter.Analysis(valueClassDataMap), rewrittenSet).classDataMap();
+    }
+    return new Analysis(
+        new ParametricRewriter.Analysis(view(classDataMap, ClassData::parametricClassData)),
+        new ValueRewriter.Analysis(specializedView(classDataMap, valueClassDataMap, symbols)));
+  }
+
+  /**
+   * Returns a read only view of a map with the values transformed by the mapper.
+   * The values are only requested to the map when needed, so the map can be filled lazily (see {@link Agent}).
+   */
+  private static <V> Map<String, V> view(Map<String, ClassData> classDataMap, Function<? super ClassData, ? extends V> mapper) {
+    return new AbstractMap<>() {
+      @Override
+      public V get(Object key) {
+        var classData = classDataMap.get(key);
+        return classData == null ? null : mapper.apply(classData);
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return classDataMap.containsKey(key);
+      }
+
+      @Override
+      public Set<Entry<String, V>> entrySet() {
+        return new AbstractSet<>() {
+          @Override
+          public int size() {
+            return classDataMap.size();
+          }
+
+          @Override
+          public Iterator<Entry<String, V>> iterator() {
+            var iterator = classDataMap.entrySet().iterator();
+            return new Iterator<>() {
+              @Override
+              public boolean hasNext() {
+                return iterator.hasNext();
+              }
+
+              @Override
+              public Entry<String, V> next() {
+                var entry = iterator.next();
+                return Map.entry(entry.getKey(), mapper.apply(entry.getValue()));
+              }
+            };
+          }
+        };
+      }
+    };
+  }
+
+  private static Optional<byte[]> rewrite(byte[] buffer, Analysis analysis) {
+    var reader = new ClassReader(buffer);
+    var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    var valueRewriter = ValueRewriter.rewriter(reader, analysis.valueAnalysis, writer);
+    var parametricRewriter = ParametricRewriter.rewriter(reader, analysis.parametricAnalysis, valueRewriter.orElse(writer));
+    if (parametricRewriter.isEmpty() && valueRewriter.isEmpty()) {
+      return Optional.empty();
+    }
+    reader.accept(parametricRewriter.or(() -> valueRewriter).orElseThrow(), 0);
+    return Optional.of(ParametricRewriter.addKiddyPoolTemplate(reader.getClassName(), writer.toByteArray(), analysis.parametricAnalysis));
+  }
+
+  static final Driver.Rewriter<ClassData, Analysis> REWRITER = rewriter(false);
+
+  /**
+   * Returns the rewriter.
+   * @param inferImplicitlyConstructible true if the value classes are implicitly constructible
+   *                                     when it is possible (see {@link ValueRewriter#inferImplicitlyConstructible(ValueRewriter.Analysis, Set)}).
+   */
+  static Driver.Rewriter<ClassData, Analysis> rewriter(boolean inferImplicitlyConstructible) {
+    var symbols = new ValueRewriter.Symbols();
+    return new Driver.Rewriter<>() {
+      @Override
+      public ClassData analyze(byte[] bytecode) {
+        return AllRewriter.analyze(bytecode, symbols);
+      }
+
+      @Override
+      public String internalName(ClassData classData) {
+        return ParametricRewriter.REWRITER.internalName(classData.parametricClassData);
+      }
+
+      @Override
+      public Analysis analysis(Map<String, ClassData> classDataMap) {
+        return analysis(classDataMap, classDataMap.keySet());
+      }
+
+      @Override
+      public Analysis analysis(Map<String, ClassData> classDataMap, Set<String> rewrittenSet) {
+        return AllRewriter.analysis(classDataMap, rewrittenSet, inferImplicitlyConstructible, symbols);
+      }
+
+      @Override
+      public Optional<byte[]> rewrite(byte[] bytecode, Analysis analysis) {
+        return AllRewriter.rewrite(bytecode, analysis);
+      }
+
+      @Override
+      public void write(DataOutput output, ClassData classData) throws IOException {
+        ParametricRewriter.REWRITER.write(output, classData.parametricClassData);
+        ValueRewriter.writeClassData(output, classData.valueClassData);
+      }
+
+      @Override
+      public ClassData read(DataInput input) throws IOException {
+        return new ClassData(ParametricRewriter.REWRITER.read(input), ValueRewriter.readClassData(input, symbols));
+      }
+    };
+  }
+
   public static void main(String[] args) throws IOException {
-    System.out.println("--- parametric ---");
-    ParametricRewriter.main(args);
-    System.out.println("--- value ---");
-    ValueRewriter.main(args);
+    var options = Driver.Options.parse(args);
+    var driver = new Driver<>("all", rewriter(options.inferImplicitlyConstructible()), options);
+    if (options.input() != null) {
+      try(var jar = Jar.open(options.input())) {
+        var analysis = driver.analyze(jar);
+        analysis.valueAnalysis.dump();
+        driver.rewrite(jar, options.output(), analysis);
+      }
+      return;
+    }
+
+    var main = Driver.classes(Path.of("target/classes"));
+    var test = Driver.classes(Path.of("target/test-classes"));
+    var classes = Stream.concat(main.stream(), test.stream()).sorted().toList();
+
+    var analysis = driver.analyze(classes);
+    analysis.valueAnalysis.dump();
+    driver.rewrite(classes, analysis);
   }
 }
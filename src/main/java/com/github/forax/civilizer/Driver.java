@@ -0,0 +1,714 @@
+package com.github.forax.civilizer;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Drives a two passes rewriter on a list of class files.
+ * The first pass analyzes each class and gathers the results in a map indexed by the internal name of the classes,
+ * the second pass rewrites each class in place using the analysis of all the classes.
+ *
+ * In parallel mode, each pass uses the common fork-join pool, the analysis of each class is done independently,
+ * the results are merged in encounter order and each rewrite is an independent task.
+ * Given that a rewrite only depends on the bytecode of a class and on the analysis,
+ * the resulting class files are identical to the ones of the sequential mode.
+ *
+ * In incremental mode, a manifest stored in {@code target/civilizer/<name>/} records for each class file
+ * the hash of the bytecode before and after the rewrite, the analysis of the class and the classes it references.
+ * The bytecode before and after the rewrite are also stored, indexed by their hash.
+ * A class is only analyzed again if its bytecode has changed, and only rewritten again if it has changed or
+ * if it references a class which has an analysis that has changed.
+ * A class file which is recompiled to the same bytecode is replaced by the stored rewritten bytecode.
+ *
+ * In jar mode, the classes of a jar are analyzed then the jar is copied entry by entry into another jar,
+ * each class is rewritten if necessary, the other entries are copied without being decompressed (see {@link Jar}).
+ *
+ * The jars of the classpath are analyzed but not rewritten, so the classes of the project see the classes
+ * of the dependencies. The analysis of each jar is stored in {@code ~/.civilizer/index/<name>/}
+ * indexed by the hash of the jar, a class of the project wins over a class of a dependency.
+ * In incremental mode, if the hashes of the dependencies change, all the classes are rewritten.
+ */
+final class Driver<D, A> {
+  /**
+   * A two passes rewriter.
+   * @param <D> type of the analysis result of one class.
+   * @param <A> type of the analysis result of all classes.
+   */
+  interface Rewriter<D, A> {
+    D analyze(byte[] bytecode);
+    String internalName(D classData);
+    A analysis(Map<String, D> classDataMap);
+
+    /**
+     * Returns the analysis of all classes, only the classes of {@code rewrittenSet} are rewritten,
+     * the other classes of the map are the classes of the dependencies.
+     */
+    default A analysis(Map<String, D> classDataMap, Set<String> rewrittenSet) {
+      return analysis(classDataMap);
+    }
+    Optional<byte[]> rewrite(byte[] bytecode, A analysis);
+
+    void write(DataOutput output, D classData) throws IOException;
+    D read(DataInput input) throws IOException;
+  }
+
+  /**
+   * Options of the rewriters.
+   * @param inferImplicitlyConstructible true if the value classes which zero instance is valid
+   *                                     are rewritten as implicitly constructible.
+   * @param input the jar to rewrite or null to rewrite the class files of the target folder.
+   * @param output the rewritten jar or null to rewrite the class files of the target folder.
+   * @param classpath the jars of the dependencies, analyzed but not rewritten.
+   * @param log the level of the console output.
+   * @param report the file of the JSON report or null.
+   */
+  record Options(boolean parallel, boolean incremental, boolean inferImplicitlyConstructible, Path input, Path output, List<Path> classpath, Log.Level log, Path report) {
+    static Options parse(String[] args) {
+      var parallel = false;
+      var incremental = false;
+      var inferImplicitlyConstructible = false;
+      Path input = null;
+      Path output = null;
+      var classpath = List.<Path>of();
+      var log = Log.Level.INFO;
+      Path report = null;
+      for(var i = 0; i < args.length; i++) {
+        var arg = args[i];
+        switch (arg) {
+          case "--parallel" -> parallel = true;
+          case "--incremental" -> incremental = true;
+          case "--infer-implicitly-constructible" -> inferImplicitlyConstructible = true;
+          case "--input" -> input = Path.of(value(args, ++i, arg));
+          case "--output" -> output = Path.of(value(args, ++i, arg));
+          case "--classpath" -> classpath = Arrays.stream(value(args, ++i, arg).split(File.pathSeparator))
+              .filter(path -> !path.isEmpty())
+              .map(Path::of)
+              .toList();
+          case "--log" -> log = Log.Level.parse(value(args, ++i, arg));
+          case "--report" -> report = Path.of(value(args, ++i, arg));
+          default -> throw new IllegalArgumentException("unknown option " + arg);
+        }
+      }
+      if ((input == null) != (output == null)) {
+        throw new IllegalArgumentException("--input and --output should be used together");
+      }
+      if (input != null && incremental) {
+        throw new IllegalArgumentException("--incremental is not supported with --input");
+      }
+      if (incremental && inferImplicitlyConstructible) {
+        // the inference is transitive on the field types, a changed class may promote a class that has not changed
+        throw new IllegalArgumentException("--infer-implicitly-constructible is not supported with --incremental");
+      }
+      if (input != null && input.toAbsolutePath().normalize().equals(output.toAbsolutePath().normalize())) {
+        throw new IllegalArgumentException("--input and --output should be different files");
+      }
+      for(var path: classpath) {
+        if (!path.toString().endsWith(".jar")) {
+          throw new IllegalArgumentException("--classpath only supports jars " + path);
+        }
+      }
+      return new Options(parallel, incremental, inferImplicitlyConstructible, input, output, classpath, log, report);
+    }
+
+    private static String value(String[] args, int index, String option) {
+      if (index >= args.length) {
+        throw new IllegalArgumentException("no value for option " + option);
+      }
+      return args[index];
+    }
+  }
+
+  private enum State {
+    /** the class file contains the rewritten bytecode */
+    UP_TO_DATE,
+    /** the class file contains the same bytecode as the one of the previous rewrite */
+    RECOMPILED,
+    /** the class file is new or contains a new bytecode */
+    CHANGED
+  }
+
+  private record Entry<D>(String inputHash, String outputHash, Set<String> references, D classData) {}
+  private record Unit<D>(Path path, State state, Entry<D> entry) {}
+
+  private static final int MANIFEST_VERSION = 4;
+  private static final int INDEX_VERSION = 2;
+
+  private final Rewriter<D, A> rewriter;
+  private final Options options;
+  private final Path cacheFolder;
+  private final Path indexFolder;
+  private final Report report;
+  private List<Unit<D>> units = List.of();
+  private Set<Path> dirtySet = Set.of();
+
+  Driver(String name, Rewriter<D, A> rewriter, Options options) {
+    this.rewriter = rewriter;
+    this.options = options;
+    this.cacheFolder = Path.of("target", "civilizer", name);
+    this.indexFolder = Path.of(System.getProperty("user.home"), ".civilizer", "index", name);
+    this.report = new Report(name, options.report != null);
+    Log.level(options.log);
+  }
+
+  static List<Path> classes(Path folder) throws IOException {
+    if (!Files.exists(folder)) {
+      return List.of();
+    }
+    try(var paths = Files.walk(folder)) {
+      return paths
+          .filter(p -> p.toString().endsWith(".class"))
+          .toList();
+    }
+  }
+
+  private static byte[] readAllBytes(Path path) {
+    try {
+      return Files.readAllBytes(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void write(Path path, byte[] data) {
+    try {
+      Files.write(path, data);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static MessageDigest digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String hash(byte[] data) {
+    return HexFormat.of().formatHex(digest().digest(data));
+  }
+
+  private static String hash(Path path) throws IOException {
+    var digest = digest();
+    try(var input = new DigestInputStream(Files.newInputStream(path), digest)) {
+      input.transferTo(OutputStream.nullOutputStream());
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private <T> Stream<T> stream(List<T> list) {
+    return options.parallel ? list.parallelStream() : list.stream();
+  }
+
+  private D analyze(String name, byte[] bytecode) {
+    Log.debug(() -> "analyze " + name);
+    var classData = rewriter.analyze(bytecode);
+    report.analyzed();
+    return classData;
+  }
+
+  /**
+   * Rewrites a class, returns the rewritten bytecode or an empty optional if the class is not changed by the rewrite.
+   */
+  private Optional<byte[]> rewrite(String name, byte[] bytecode, A analysis) {
+    Log.debug(() -> "rewrite " + name);
+    var data = rewriter.rewrite(bytecode, analysis);
+    if (data.isEmpty() || Arrays.equals(bytecode, data.orElseThrow())) {
+      Log.debug(() -> "  skip rewrite " + name);
+      report.skipped();
+      return Optional.empty();
+    }
+    report.rewritten(name, bytecode, data.orElseThrow());
+    return data;
+  }
+
+  private void endAnalysis(long start) {
+    var nanos = System.nanoTime() - start;
+    report.phase("analysis", nanos);
+    Log.info("analysis: " + report.analyzedCount() + " classes analyzed in " + nanos / 1_000_000 + " ms");
+  }
+
+  private void endRewrite(long start) throws IOException {
+    var nanos = System.nanoTime() - start;
+    report.phase("rewrite", nanos);
+    Log.info("rewrite: " + report.rewrittenCount() + " classes rewritten, " + report.skippedCount() + " skipped in " + nanos / 1_000_000 + " ms");
+    if (options.report != null) {
+      report.write(options.report);
+      Log.info("report: " + options.report);
+    }
+  }
+
+  A analyze(List<Path> classes) throws IOException {
+    var start = System.nanoTime();
+    A analysis;
+    try {
+      if (options.incremental) {
+        analysis = analyzeIncrementally(classes);
+      } else {
+        var classDataMap = stream(classes)
+            .map(path -> analyze(path.toString(), readAllBytes(path)))
+            .collect(Collectors.toMap(rewriter::internalName, classData -> classData, (classData1, classData2) -> classData2, HashMap::new));
+        var rewrittenSet = Set.copyOf(classDataMap.keySet());
+        dependencies().classDataMap.forEach(classDataMap::putIfAbsent);
+        analysis = rewriter.analysis(classDataMap, rewrittenSet);
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    endAnalysis(start);
+    return analysis;
+  }
+
+  void rewrite(List<Path> classes, A analysis) throws IOException {
+    var start = System.nanoTime();
+    try {
+      if (options.incremental) {
+        rewriteIncrementally(analysis);
+      } else {
+        stream(classes).forEach(path -> rewrite(path.toString(), readAllBytes(path), analysis).ifPresent(data -> write(path, data)));
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    endRewrite(start);
+  }
+
+  private static byte[] read(Jar jar, Jar.Entry entry) {
+    try {
+      return jar.read(entry);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Analyzes the classes of a jar, the entries are decompressed one by one.
+   */
+  A analyze(Jar jar) throws IOException {
+    var start = System.nanoTime();
+    A analysis;
+    try {
+      var classDataMap = analyzeEntries(jar, false);
+      var rewrittenSet = Set.copyOf(classDataMap.keySet());
+      dependencies().classDataMap.forEach(classDataMap::putIfAbsent);
+      analysis = rewriter.analysis(classDataMap, rewrittenSet);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    endAnalysis(start);
+    return analysis;
+  }
+
+  private HashMap<String, D> analyzeEntries(Jar jar, boolean skipErrors) {
+    var entries = jar.entries().stream().filter(Jar.Entry::isClass).toList();
+    return stream(entries)
+        .<D>mapMulti((entry, consumer) -> {
+          try {
+            consumer.accept(analyze(entry.name(), read(jar, entry)));
+          } catch (RuntimeException e) {
+            if (!skipErrors || e instanceof UncheckedIOException) {
+              throw e;
+            }
+            Log.info("  skip analysis " + entry.name() + " (" + e + ")");
+          }
+        })
+        .collect(Collectors.toMap(rewriter::internalName, classData -> classData, (classData1, classData2) -> classData2, HashMap::new));
+  }
+
+  private record Dependencies<D>(List<String> hashes, Map<String, D> classDataMap) {}
+
+  private Dependencies<D> dependencies;
+
+  /**
+   * Returns the analysis of the classes of the dependencies, the first jar of the classpath that contains a class wins.
+   * The analysis of a jar is stored in an index indexed by the hash of the jar, so each version of a jar
+   * is only analyzed once.
+   */
+  private Dependencies<D> dependencies() throws IOException {
+    if (dependencies != null) {
+      return dependencies;
+    }
+    var hashes = new ArrayList<String>();
+    var classDataMap = new HashMap<String, D>();
+    for(var path: options.classpath) {
+      var hash = hash(path);
+      hashes.add(hash);
+      index(path, hash).forEach(classDataMap::putIfAbsent);
+    }
+    return dependencies = new Dependencies<>(List.copyOf(hashes), classDataMap);
+  }
+
+  private Map<String, D> index(Path path, String hash) throws IOException {
+    var index = indexFolder.resolve(hash);
+    if (Files.exists(index)) {
+      try(var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+        if (input.readInt() == INDEX_VERSION) {
+          var count = input.readInt();
+          var classDataMap = new HashMap<String, D>();
+          for(var i = 0; i < count; i++) {
+            var classData = rewriter.read(input);
+            classDataMap.put(rewriter.internalName(classData), classData);
+          }
+          return classDataMap;
+        }
+      } catch (IOException | RuntimeException e) {
+        Log.info("index: can not read the index " + index + ", analyze " + path + " again (" + e + ")");
+      }
+    }
+    Log.info("index " + path);
+    HashMap<String, D> classDataMap;
+    try(var jar = Jar.open(path)) {
+      classDataMap = analyzeEntries(jar, true);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    Files.createDirectories(indexFolder);
+    var temporary = Files.createTempFile(indexFolder, hash, ".tmp");
+    try {
+      try(var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        output.writeInt(INDEX_VERSION);
+        output.writeInt(classDataMap.size());
+        for(var classData: classDataMap.values()) {
+          rewriter.write(output, classData);
+        }
+      }
+      Files.move(temporary, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    return classDataMap;
+  }
+
+  /**
+   * Rewrites the classes of a jar into a new jar, the entries are written in the same order.
+   * The entries that are not classes and the classes that are not changed by the rewrite are copied
+   * without being decompressed.
+   * The new jar is written in a temporary file which is moved to the output path only if the rewrite succeeds,
+   * so a failed rewrite never leaves a truncated jar.
+   */
+  void rewrite(Jar jar, Path output, A analysis) throws IOException {
+    var start = System.nanoTime();
+    var folder = output.toAbsolutePath().getParent();
+    Files.createDirectories(folder);
+    // not created with createTempFile() so the jar is created with the default permissions
+    var temporary = folder.resolve(output.getFileName() + ".tmp");
+    try {
+      try(var writer = new Jar.Writer(temporary)) {
+        for(var entry: jar.entries()) {
+          if (!entry.isClass()) {
+            writer.copy(jar, entry);
+            continue;
+          }
+          var data = rewrite(entry.name(), jar.read(entry), analysis);
+          if (data.isEmpty()) {
+            writer.copy(jar, entry);
+            continue;
+          }
+          writer.write(entry, data.orElseThrow());
+        }
+      }
+      Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    endRewrite(start);
+  }
+
+  private A analyzeIncrementally(List<Path> classes) throws IOException {
+    var manifest = loadManifest();
+    var previousEntryMap = manifest.entryMap;
+    var otherHashesList = loadOtherHashes();
+    units = stream(classes)
+        .map(path -> {
+          var bytecode = readAllBytes(path);
+          var hash = hash(bytecode);
+          var previous = previousEntryMap.get(path.toString());
+          if (previous != null &&
+              (hash.equals(previous.outputHash) ||
+               otherHashesList.stream().map(hashesMap -> hashesMap.get(path.toString())).anyMatch(other ->
+                   other != null && other.inputHash.equals(previous.outputHash) && other.outputHash.equals(hash)))) {
+            return new Unit<>(path, State.UP_TO_DATE, previous);
+          }
+          if (previous != null && hash.equals(previous.inputHash)) {
+            return new Unit<>(path, State.RECOMPILED, previous);
+          }
+          var classData = analyze(path.toString(), bytecode);
+          return new Unit<>(path, State.CHANGED, new Entry<>(hash, null, references(bytecode), classData));
+        })
+        .toList();
+
+    // find the classes with an analysis that has changed
+    var previousClassDataMap = previousEntryMap.values().stream()
+        .collect(Collectors.toMap(entry -> rewriter.internalName(entry.classData), Entry::classData, (classData1, classData2) -> classData2, HashMap::new));
+    var classDataMap = units.stream()
+        .collect(Collectors.toMap(unit -> rewriter.internalName(unit.entry.classData), unit -> unit.entry.classData, (classData1, classData2) -> classData2, HashMap::new));
+    var changedSet = Stream.concat(previousClassDataMap.keySet().stream(), classDataMap.keySet().stream())
+        .filter(internalName -> !Objects.equals(previousClassDataMap.get(internalName), classDataMap.get(internalName)))
+        .collect(Collectors.toSet());
+
+    // a class need to be rewritten if it has changed or if it references a class with a changed analysis
+    // if a dependency has changed, all classes are rewritten
+    var dependencies = dependencies();
+    var dependencyChanged = !dependencies.hashes.equals(manifest.dependencyHashes);
+    if (dependencyChanged && !previousEntryMap.isEmpty()) {
+      Log.info("incremental: the dependencies have changed, rewrite all classes");
+    }
+    dirtySet = units.stream()
+        .filter(unit -> dependencyChanged || unit.state == State.CHANGED || unit.entry.references.stream().anyMatch(changedSet::contains))
+        .map(Unit::path)
+        .collect(Collectors.toSet());
+    Log.info("incremental: " + units.size() + " classes, " + changedSet.size() + " changed analysis, " + dirtySet.size() + " classes to rewrite");
+
+    var rewrittenSet = Set.copyOf(classDataMap.keySet());
+    dependencies.classDataMap.forEach(classDataMap::putIfAbsent);
+    return rewriter.analysis(classDataMap, rewrittenSet);
+  }
+
+  private void rewriteIncrementally(A analysis) throws IOException {
+    var blobFolder = cacheFolder.resolve("blobs");
+    Files.createDirectories(blobFolder);
+    var entryMap = stream(units)
+        .map(unit -> {
+          var path = unit.path;
+          var entry = unit.entry;
+          if (!dirtySet.contains(path)) {
+            if (unit.state == State.RECOMPILED && !entry.outputHash.equals(entry.inputHash)) {
+              var blob = blobFolder.resolve(entry.outputHash);
+              if (Files.exists(blob)) {
+                // same bytecode as last time, re-use the rewritten bytecode
+                write(path, readAllBytes(blob));
+                report.skipped();
+                return Map.entry(path.toString(), entry);
+              }
+            } else {
+              report.skipped();
+              return Map.entry(path.toString(), entry);
+            }
+          }
+          var bytecode = unit.state == State.UP_TO_DATE ?
+              readAllBytes(blobFolder.resolve(entry.inputHash)) :
+              readAllBytes(path);
+          var output = rewrite(path.toString(), bytecode, analysis).orElse(bytecode);
+          var outputHash = hash(output);
+          storeBlob(blobFolder, entry.inputHash, bytecode);
+          storeBlob(blobFolder, outputHash, output);
+          write(path, output);
+          return Map.entry(path.toString(), new Entry<>(entry.inputHash, outputHash, entry.references, entry.classData));
+        })
+        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+
+    saveManifest(dependencies().hashes, entryMap);
+
+    // remove the unused blobs
+    var usedBlobs = entryMap.values().stream()
+        .flatMap(entry -> Stream.of(entry.inputHash, entry.outputHash))
+        .collect(Collectors.toSet());
+    try(var blobs = Files.list(blobFolder)) {
+      for(var blob: blobs.toList()) {
+        if (!usedBlobs.contains(blob.getFileName().toString())) {
+          Files.delete(blob);
+        }
+      }
+    }
+  }
+
+  private static void storeBlob(Path blobFolder, String hash, byte[] data) {
+    var blob = blobFolder.resolve(hash);
+    if (!Files.exists(blob)) {
+      write(blob, data);
+    }
+  }
+
+  private record Manifest<D>(List<String> dependencyHashes, Map<String, Entry<D>> entryMap) {}
+
+  private Manifest<D> loadManifest() {
+    var manifest = cacheFolder.resolve("manifest");
+    if (!Files.exists(manifest)) {
+      return new Manifest<>(List.of(), Map.of());
+    }
+    try(var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+      var hashesMap = readHashes(input);
+      if (hashesMap == null) {
+        return new Manifest<>(List.of(), Map.of());
+      }
+      var dependencyCount = input.readInt();
+      var dependencyHashes = new ArrayList<String>();
+      for(var i = 0; i < dependencyCount; i++) {
+        dependencyHashes.add(input.readUTF());
+      }
+      var entryMap = new HashMap<String, Entry<D>>();
+      for(var hashesEntry: hashesMap.entrySet()) {
+        var hashes = hashesEntry.getValue();
+        var referenceCount = input.readInt();
+        var references = new HashSet<String>();
+        for(var j = 0; j < referenceCount; j++) {
+          references.add(input.readUTF());
+        }
+        var classData = rewriter.read(input);
+        entryMap.put(hashesEntry.getKey(), new Entry<>(hashes.inputHash, hashes.outputHash, references, classData));
+      }
+      return new Manifest<>(dependencyHashes, entryMap);
+    } catch (IOException | RuntimeException e) {
+      Log.info("incremental: can not read the manifest " + manifest + ", rewrite all classes (" + e + ")");
+      return new Manifest<>(List.of(), Map.of());
+    }
+  }
+
+  private record Hashes(String inputHash, String outputHash) {}
+
+  // the hashes are stored first so they can be read without knowing the format of the analysis
+  private static LinkedHashMap<String, Hashes> readHashes(DataInputStream input) throws IOException {
+    if (input.readInt() != MANIFEST_VERSION) {
+      return null;
+    }
+    var hashesMap = new LinkedHashMap<String, Hashes>();
+    var count = input.readInt();
+    for(var i = 0; i < count; i++) {
+      hashesMap.put(input.readUTF(), new Hashes(input.readUTF(), input.readUTF()));
+    }
+    return hashesMap;
+  }
+
+  /**
+   * Returns the hashes of the other rewriters, if the rewriters are chained,
+   * a class file rewritten by this rewriter then by another one is still up-to-date.
+   */
+  private List<Map<String, Hashes>> loadOtherHashes() {
+    var parentFolder = cacheFolder.getParent();
+    if (!Files.isDirectory(parentFolder)) {
+      return List.of();
+    }
+    try(var folders = Files.list(parentFolder)) {
+      return folders
+          .filter(folder -> !folder.equals(cacheFolder))
+          .map(folder -> folder.resolve("manifest"))
+          .filter(Files::exists)
+          .<Map<String, Hashes>>flatMap(manifest -> {
+            try(var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+              return Stream.ofNullable(readHashes(input));
+            } catch (IOException e) {
+              return Stream.empty();
+            }
+          })
+          .toList();
+    } catch (IOException e) {
+      return List.of();
+    }
+  }
+
+  private void saveManifest(List<String> dependencyHashes, Map<String, Entry<D>> entryMap) throws IOException {
+    var manifest = cacheFolder.resolve("manifest");
+    try(var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(manifest)))) {
+      output.writeInt(MANIFEST_VERSION);
+      output.writeInt(entryMap.size());
+      for(var mapEntry: entryMap.entrySet()) {
+        var entry = mapEntry.getValue();
+        output.writeUTF(mapEntry.getKey());
+        output.writeUTF(entry.inputHash);
+        output.writeUTF(entry.outputHash);
+      }
+      output.writeInt(dependencyHashes.size());
+      for(var dependencyHash: dependencyHashes) {
+        output.writeUTF(dependencyHash);
+      }
+      for(var entry: entryMap.values()) {
+        output.writeInt(entry.references.size());
+        for(var reference: entry.references) {
+          output.writeUTF(reference);
+        }
+        rewriter.write(output, entry.classData);
+      }
+    }
+  }
+
+  /**
+   * Returns the internal names of the classes referenced in the constant pool,
+   * either as a class constant or inside a descriptor.
+   */
+  static Set<String> references(byte[] bytecode) {
+    var reader = new ClassReader(bytecode);
+    var buffer = new char[reader.getMaxStringLength()];
+    var references = new HashSet<String>();
+    for(var i = 1; i < reader.getItemCount(); i++) {
+      var offset = reader.getItem(i);
+      if (offset == 0) {  // second slot of a long or a double
+        continue;
+      }
+      switch (reader.readByte(offset - 1)) {
+        case 1 -> {  // CONSTANT_Utf8
+          var length = reader.readUnsignedShort(offset);
+          var data = new byte[length];
+          for(var j = 0; j < length; j++) {
+            data[j] = (byte) reader.readByte(offset + 2 + j);
+          }
+          descriptorReferences(new String(data, StandardCharsets.UTF_8), references);
+        }
+        case 7 -> {  // CONSTANT_Class
+          var internalName = reader.readUTF8(offset, buffer);
+          if (internalName.startsWith("[")) {
+            descriptorReferences(internalName, references);
+          } else {
+            references.add(internalName);
+          }
+        }
+        default -> {}
+      }
+    }
+    return references;
+  }
+
+  private static void descriptorReferences(String text, Set<String> references) {
+    for(var start = text.indexOf('L'); start != -1; start = text.indexOf('L', start + 1)) {
+      var end = text.indexOf(';', start);
+      if (end == -1) {
+        return;
+      }
+      var internalName = text.substring(start + 1, end);
+      if (!internalName.isEmpty() && internalName.chars().noneMatch(c -> c == '<' || c == '>' || c == '(' || c == ')' || c == ' ')) {
+        references.add(internalName);
+      }
+    }
+  }
+
+  static void writeNullableUTF(DataOutput output, String s) throws IOException {
+    output.writeBoolean(s != null);
+    if (s != null) {
+      output.writeUTF(s);
+    }
+  }
+
+  static String readNullableUTF(DataInput input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
+}
@@ -0,0 +1,343 @@
+package com.github.forax.civilizer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A jar (a zip file) memory-mapped in read only mode.
+ *
+ * The entries are read from the central directory, the content of an entry is only decompressed on demand
+ * and an entry can be copied to a {@link Writer} as is, without being decompressed and compressed again,
+ * so the memory used does not depend on the size of the jar.
+ *
+ * Only the classical zip format is supported, not the zip64 extensions (more than 65535 entries or more than 4G),
+ * and the entries must be either stored or deflated.
+ */
+final class Jar implements Closeable {
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+  private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+  private static final int DEFLATE_VERSION = 20;
+
+  /**
+   * An entry of the central directory.
+   * The name is kept as bytes to be written back as is, {@link #name()} decodes it.
+   */
+  record Entry(int versionMadeBy, int versionNeeded, int flags, int method, int time, int date,
+               int crc, long compressedSize, long size,
+               byte[] nameBytes, byte[] extra, byte[] comment,
+               int internalAttributes, int externalAttributes, long localHeaderOffset) {
+    String name() {
+      return new String(nameBytes, StandardCharsets.UTF_8);
+    }
+
+    boolean isClass() {
+      var name = name();
+      return name.endsWith(".class") && !name.equals("module-info.class") && !name.endsWith("/module-info.class");
+    }
+  }
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final List<Entry> entries;
+
+  private Jar(FileChannel channel, MappedByteBuffer buffer, List<Entry> entries) {
+    this.channel = channel;
+    this.buffer = buffer;
+    this.entries = entries;
+  }
+
+  static Jar open(Path path) throws IOException {
+    var channel = FileChannel.open(path, READ);
+    try {
+      var size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("jar " + path + " is too big");
+      }
+      var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      return new Jar(channel, buffer, readCentralDirectory(path, buffer));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  List<Entry> entries() {
+    return entries;
+  }
+
+  private static List<Entry> readCentralDirectory(Path path, ByteBuffer buffer) throws IOException {
+    // the end of central directory is followed by a comment of at most 65535 bytes
+    var end = -1;
+    for(var offset = buffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; offset >= Math.max(0, buffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE - 0xFFFF); offset--) {
+      if (buffer.getInt(offset) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        end = offset;
+        break;
+      }
+    }
+    if (end == -1) {
+      throw new IOException("jar " + path + " has no central directory");
+    }
+    var entryCount = Short.toUnsignedInt(buffer.getShort(end + 10));
+    var directoryOffset = Integer.toUnsignedLong(buffer.getInt(end + 16));
+    if (entryCount == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+      throw new IOException("jar " + path + " uses zip64, not supported");
+    }
+    var entries = new ArrayList<Entry>(entryCount);
+    var offset = (int) directoryOffset;
+    for(var i = 0; i < entryCount; i++) {
+      if (buffer.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException("jar " + path + " has a malformed central directory");
+      }
+      var nameLength = Short.toUnsignedInt(buffer.getShort(offset + 28));
+      var extraLength = Short.toUnsignedInt(buffer.getShort(offset + 30));
+      var commentLength = Short.toUnsignedInt(buffer.getShort(offset + 32));
+      var entry = new Entry(
+          Short.toUnsignedInt(buffer.getShort(offset + 4)),
+          Short.toUnsignedInt(buffer.getShort(offset + 6)),
+          Short.toUnsignedInt(buffer.getShort(offset + 8)),
+          Short.toUnsignedInt(buffer.getShort(offset + 10)),
+          Short.toUnsignedInt(buffer.getShort(offset + 12)),
+          Short.toUnsignedInt(buffer.getShort(offset + 14)),
+          buffer.getInt(offset + 16),
+          Integer.toUnsignedLong(buffer.getInt(offset + 20)),
+          Integer.toUnsignedLong(buffer.getInt(offset + 24)),
+          bytes(buffer, offset + CENTRAL_HEADER_SIZE, nameLength),
+          bytes(buffer, offset + CENTRAL_HEADER_SIZE + nameLength, extraLength),
+          bytes(buffer, offset + CENTRAL_HEADER_SIZE + nameLength + extraLength, commentLength),
+          Short.toUnsignedInt(buffer.getShort(offset + 36)),
+          buffer.getInt(offset + 38),
+          Integer.toUnsignedLong(buffer.getInt(offset + 42)));
+      if (entry.method != STORED && entry.method != DEFLATED) {
+        throw new IOException("jar " + path + ", entry " + entry.name() + " uses an unsupported compression method " + entry.method);
+      }
+      entries.add(entry);
+      offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+    var data = new byte[length];
+    buffer.get(offset, data);
+    return data;
+  }
+
+  private int localExtraOffset(Entry entry) {
+    return (int) entry.localHeaderOffset + LOCAL_HEADER_SIZE + Short.toUnsignedInt(buffer.getShort((int) entry.localHeaderOffset + 26));
+  }
+
+  private ByteBuffer localExtra(Entry entry) {
+    var offset = localExtraOffset(entry);
+    var localExtraLength = Short.toUnsignedInt(buffer.getShort((int) entry.localHeaderOffset + 28));
+    return buffer.slice(offset, localExtraLength);
+  }
+
+  /**
+   * Returns the compressed data of an entry, this method can be called by several threads.
+   */
+  private ByteBuffer rawData(Entry entry) throws IOException {
+    if (buffer.getInt((int) entry.localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+      throw new IOException("entry " + entry.name() + " has a malformed local header");
+    }
+    var localExtraLength = Short.toUnsignedInt(buffer.getShort((int) entry.localHeaderOffset + 28));
+    return buffer.slice(localExtraOffset(entry) + localExtraLength, (int) entry.compressedSize);
+  }
+
+  /**
+   * Returns the uncompressed content of an entry, this method can be called by several threads.
+   */
+  byte[] read(Entry entry) throws IOException {
+    var rawData = rawData(entry);
+    var data = new byte[(int) entry.size];
+    if (entry.method == STORED) {
+      rawData.get(data);
+      return data;
+    }
+    var inflater = new Inflater(true);
+    try {
+      inflater.setInput(rawData);
+      var length = 0;
+      while (length < data.length && !inflater.finished()) {
+        var read = inflater.inflate(data, length, data.length - length);
+        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("entry " + entry.name() + " is truncated");
+        }
+        length += read;
+      }
+      if (length != data.length) {
+        throw new IOException("entry " + entry.name() + " has a wrong size");
+      }
+      return data;
+    } catch (DataFormatException e) {
+      throw new IOException("entry " + entry.name() + " is malformed", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Writes a jar, the central directory is written when the writer is closed.
+   */
+  static final class Writer implements Closeable {
+    private final FileChannel channel;
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private final ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long position;
+
+    Writer(Path path) throws IOException {
+      channel = FileChannel.open(path, WRITE, CREATE, TRUNCATE_EXISTING);
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+      while (data.hasRemaining()) {
+        position += channel.write(data);
+      }
+    }
+
+    private void writeLocalHeader(Entry entry, ByteBuffer localExtra) throws IOException {
+      header.clear();
+      header.putInt(LOCAL_HEADER_SIGNATURE)
+          .putShort((short) entry.versionNeeded)
+          .putShort((short) entry.flags)
+          .putShort((short) entry.method)
+          .putShort((short) entry.time)
+          .putShort((short) entry.date)
+          .putInt(entry.crc)
+          .putInt((int) entry.compressedSize)
+          .putInt((int) entry.size)
+          .putShort((short) entry.nameBytes.length)
+          .putShort((short) localExtra.remaining());
+      write(header.flip());
+      write(ByteBuffer.wrap(entry.nameBytes));
+      write(localExtra);
+    }
+
+    // the sizes and the crc are written in the local header so there is no data descriptor
+    private Entry relocate(Entry entry, int versionNeeded, int method, int crc, long compressedSize, long size) throws IOException {
+      if (position > 0xFFFFFFFFL) {
+        throw new IOException("jar is too big, zip64 is not supported");
+      }
+      return new Entry(entry.versionMadeBy, versionNeeded, entry.flags & ~DATA_DESCRIPTOR_FLAG, method, entry.time, entry.date,
+          crc, compressedSize, size, entry.nameBytes, entry.extra, entry.comment,
+          entry.internalAttributes, entry.externalAttributes, position);
+    }
+
+    /**
+     * Copies an entry of a jar without decompressing it.
+     */
+    void copy(Jar jar, Entry entry) throws IOException {
+      var newEntry = relocate(entry, entry.versionNeeded, entry.method, entry.crc, entry.compressedSize, entry.size);
+      writeLocalHeader(newEntry, jar.localExtra(entry));
+      write(jar.rawData(entry));
+      entries.add(newEntry);
+    }
+
+    /**
+     * Writes an entry with a new content, the content is compressed.
+     */
+    void write(Entry entry, byte[] data) throws IOException {
+      var crc32 = new CRC32();
+      crc32.update(data);
+      var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      byte[] compressed;
+      int compressedLength;
+      try {
+        deflater.setInput(data);
+        deflater.finish();
+        compressed = new byte[data.length + 64];
+        compressedLength = 0;
+        while (!deflater.finished()) {
+          if (compressedLength == compressed.length) {
+            compressed = Arrays.copyOf(compressed, compressed.length * 2);
+          }
+          compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+      } finally {
+        deflater.end();
+      }
+      var newEntry = relocate(entry, Math.max(entry.versionNeeded, DEFLATE_VERSION), DEFLATED, (int) crc32.getValue(), compressedLength, data.length);
+      writeLocalHeader(newEntry, ByteBuffer.allocate(0));
+      write(ByteBuffer.wrap(compressed, 0, compressedLength));
+      entries.add(newEntry);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        var directoryOffset = position;
+        for(var entry: entries) {
+          header.clear();
+          header.putInt(CENTRAL_HEADER_SIGNATURE)
+              .putShort((short) entry.versionMadeBy)
+              .putShort((short) entry.versionNeeded)
+              .putShort((short) entry.flags)
+              .putShort((short) entry.method)
+              .putShort((short) entry.time)
+              .putShort((short) entry.date)
+              .putInt(entry.crc)
+              .putInt((int) entry.compressedSize)
+              .putInt((int) entry.size)
+              .putShort((short) entry.nameBytes.length)
+              .putShort((short) entry.extra.length)
+              .putShort((short) entry.comment.length)
+              .putShort((short) 0)
+              .putShort((short) entry.internalAttributes)
+              .putInt(entry.externalAttributes)
+              .putInt((int) entry.localHeaderOffset);
+          write(header.flip());
+          write(ByteBuffer.wrap(entry.nameBytes));
+          write(ByteBuffer.wrap(entry.extra));
+          write(ByteBuffer.wrap(entry.comment));
+        }
+        var directorySize = position - directoryOffset;
+        if (entries.size() >= 0xFFFF || position > 0xFFFFFFFFL) {
+          throw new IOException("jar is too big, zip64 is not supported");
+        }
+        header.clear();
+        header.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) entries.size())
+            .putShort((short) entries.size())
+            .putInt((int) directorySize)
+            .putInt((int) directoryOffset)
+            .putShort((short) 0);
+        write(header.flip());
+      } finally {
+        channel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.github.forax.civilizer;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * Level-gated console output of the rewriters.
+ * The messages of the levels {@link Level#DEBUG} and {@link Level#TRACE} are built lazily,
+ * so they cost nothing when the level is not enabled.
+ */
+final class Log {
+  private Log() {
+    throw new AssertionError();
+  }
+
+  enum Level {
+    /** nothing is printed */
+    QUIET,
+    /** only the summaries and the warnings */
+    INFO,
+    /** each class analyzed or rewritten and each rewrite of a member */
+    DEBUG,
+    /** the details of the analysis used by each rewrite */
+    TRACE;
+
+    static Level parse(String name) {
+      try {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("unknown log level " + name, e);
+      }
+    }
+  }
+
+  private static volatile Level level = Level.INFO;
+
+  static void level(Level level) {
+    Log.level = level;
+  }
+
+  static boolean isEnabled(Level level) {
+    return level.compareTo(Log.level) <= 0;
+  }
+
+  static void info(String message) {
+    if (isEnabled(Level.INFO)) {
+      System.out.println(message);
+    }
+  }
+
+  static void debug(Supplier<String> message) {
+    if (isEnabled(Level.DEBUG)) {
+      System.out.println(message.get());
+    }
+  }
+
+  static void trace(Supplier<String> message) {
+    if (isEnabled(Level.TRACE)) {
+      System.out.println(message.get());
+    }
+  }
+}
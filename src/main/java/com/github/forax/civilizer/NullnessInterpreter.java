@@ -0,0 +1,192 @@
+package com.github.forax.civilizer;
+
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Interpreter;
+import org.objectweb.asm.tree.analysis.Value;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.ANEWARRAY;
+import static org.objectweb.asm.Opcodes.ASM9;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.LDC;
+import static org.objectweb.asm.Opcodes.MULTIANEWARRAY;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.NEWARRAY;
+
+/**
+ * An intraprocedural dataflow analysis that tracks the references of the stack and of the local variables
+ * that are known to be non-null.
+ *
+ * A reference is non-null if it is {@code this}, a parameter checked at the start of the method,
+ * the result of {@code new}, of an array creation or of {@code Objects.requireNonNull},
+ * a constant (a string, a class, a method type or a method handle) or a caught exception.
+ * At a merge point, a reference is non-null only if it is non-null on all the paths.
+ * The sizes of the values are computed by a {@link BasicInterpreter}.
+ */
+final class NullnessInterpreter extends Interpreter<NullnessInterpreter.NullValue> {
+  /**
+   * A value of the analysis, a {@link BasicValue} and true if the value is a non-null reference.
+   */
+  record NullValue(BasicValue basicValue, boolean nonNull) implements Value {
+    @Override
+    public int getSize() {
+      return basicValue.getSize();
+    }
+  }
+
+  private static final NullValue NON_NULL = new NullValue(BasicValue.REFERENCE_VALUE, true);
+  private static final NullValue UNINITIALIZED = new NullValue(BasicValue.UNINITIALIZED_VALUE, false);
+
+  private final BasicInterpreter basicInterpreter = new BasicInterpreter();
+  private final BitSet nonNullParameterSlots;
+
+  private NullnessInterpreter(BitSet nonNullParameterSlots) {
+    super(ASM9);
+    this.nonNullParameterSlots = nonNullParameterSlots;
+  }
+
+  /**
+   * Analyzes a method and returns a frame for each instruction, the frame is null if the instruction
+   * is not reachable, or returns null if the method can not be analyzed.
+   * @param owner the internal name of the class of the method.
+   * @param method the method.
+   * @param nonNullParameterSlots the slots of the parameters that are known to be non-null at the start of the method.
+   */
+  static Frame<NullValue>[] analyze(String owner, MethodNode method, BitSet nonNullParameterSlots) {
+    try {
+      return new Analyzer<>(new NullnessInterpreter(nonNullParameterSlots)).analyze(owner, method);
+    } catch (AnalyzerException e) {
+      Log.debug(() -> "  nullness analysis of " + owner + "." + method.name + method.desc + " failed " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Returns true if the value on top of the stack of the frame is known to be non-null.
+   */
+  static boolean isTopNonNull(Frame<NullValue> frame) {
+    return frame != null && frame.getStack(frame.getStackSize() - 1).nonNull;
+  }
+
+  /**
+   * Returns true if an argument of a call, the arguments being on top of the stack of the frame,
+   * is known to be non-null.
+   * @param argumentCount the number of arguments of the call, without the receiver.
+   * @param argument the index of the argument.
+   */
+  static boolean isArgumentNonNull(Frame<NullValue> frame, int argumentCount, int argument) {
+    return frame.getStack(frame.getStackSize() - argumentCount + argument).nonNull;
+  }
+
+  private static NullValue wrap(BasicValue basicValue) {
+    if (basicValue == null) {
+      return null;
+    }
+    if (basicValue == BasicValue.UNINITIALIZED_VALUE) {
+      return UNINITIALIZED;
+    }
+    return new NullValue(basicValue, false);
+  }
+
+  @Override
+  public NullValue newValue(Type type) {
+    return wrap(basicInterpreter.newValue(type));
+  }
+
+  @Override
+  public NullValue newParameterValue(boolean isInstanceMethod, int local, Type type) {
+    if ((isInstanceMethod && local == 0) || nonNullParameterSlots.get(local)) {
+      return NON_NULL;
+    }
+    return newValue(type);
+  }
+
+  @Override
+  public NullValue newExceptionValue(TryCatchBlockNode tryCatchBlockNode, Frame<NullValue> handlerFrame, Type exceptionType) {
+    return NON_NULL;
+  }
+
+  @Override
+  public NullValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
+    if (insn.getOpcode() == NEW) {
+      return NON_NULL;
+    }
+    if (insn.getOpcode() == LDC) {
+      var value = ((LdcInsnNode) insn).cst;
+      if (value instanceof String || value instanceof Type || value instanceof Handle) {
+        return NON_NULL;
+      }
+      if (value instanceof ConstantDynamic constantDynamic) {  // a constant dynamic can be null
+        return newValue(Type.getType(constantDynamic.getDescriptor()));
+      }
+    }
+    return wrap(basicInterpreter.newOperation(insn));
+  }
+
+  @Override
+  public NullValue copyOperation(AbstractInsnNode insn, NullValue value) {
+    return value;
+  }
+
+  @Override
+  public NullValue unaryOperation(AbstractInsnNode insn, NullValue value) throws AnalyzerException {
+    return switch (insn.getOpcode()) {
+      case NEWARRAY, ANEWARRAY -> NON_NULL;
+      case CHECKCAST -> value;
+      default -> wrap(basicInterpreter.unaryOperation(insn, value.basicValue));
+    };
+  }
+
+  @Override
+  public NullValue binaryOperation(AbstractInsnNode insn, NullValue value1, NullValue value2) throws AnalyzerException {
+    return wrap(basicInterpreter.binaryOperation(insn, value1.basicValue, value2.basicValue));
+  }
+
+  @Override
+  public NullValue ternaryOperation(AbstractInsnNode insn, NullValue value1, NullValue value2, NullValue value3) throws AnalyzerException {
+    return wrap(basicInterpreter.ternaryOperation(insn, value1.basicValue, value2.basicValue, value3.basicValue));
+  }
+
+  @Override
+  public NullValue naryOperation(AbstractInsnNode insn, List<? extends NullValue> values) throws AnalyzerException {
+    if (insn.getOpcode() == MULTIANEWARRAY) {
+      return NON_NULL;
+    }
+    if (insn.getOpcode() == INVOKESTATIC && insn instanceof MethodInsnNode methodInsn &&
+        methodInsn.owner.equals("java/util/Objects") && methodInsn.name.equals("requireNonNull")) {
+      return NON_NULL;
+    }
+    return wrap(basicInterpreter.naryOperation(insn, values.stream().map(NullValue::basicValue).toList()));
+  }
+
+  @Override
+  public void returnOperation(AbstractInsnNode insn, NullValue value, NullValue expected) {
+    // do nothing
+  }
+
+  @Override
+  public NullValue merge(NullValue value1, NullValue value2) {
+    if (value1.equals(value2)) {
+      return value1;
+    }
+    if (!value1.basicValue.equals(value2.basicValue)) {
+      return UNINITIALIZED;
+    }
+    return new NullValue(value1.basicValue, false);
+  }
+}
@@ -1,5 +1,6 @@
 package com.github.forax.civilizer;
 
+import com.github.forax.civilizer.prt.KiddyPoolTemplate;
 import com.github.forax.civilizer.prt.Parametric;
 import com.github.forax.civilizer.prt.RT;
 import com.github.forax.civilizer.prt.SuperType;
@@ -11,15 +12,17 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.ConstantDynamic;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.lang.constant.ClassDesc;
 import java.lang.constant.MethodTypeDesc;
 import java.lang.invoke.MethodHandles;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -55,6 +58,7 @@ import static org.objectweb.asm.Opcodes.ALOAD;
 import static org.objectweb.asm.Opcodes.ANEWARRAY;
 import static org.objectweb.asm.Opcodes.ARETURN;
 import static org.objectweb.asm.Opcodes.ASM9;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
 import static org.objectweb.asm.Opcodes.DUP;
 import static org.objectweb.asm.Opcodes.GETFIELD;
 import static org.objectweb.asm.Opcodes.H_INVOKESTATIC;
@@ -66,6 +70,7 @@ import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
 import static org.objectweb.asm.Opcodes.IRETURN;
 import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.POP;
 import static org.objectweb.asm.Opcodes.PUTFIELD;
 
 /*
@@ -93,7 +98,7 @@ import static org.objectweb.asm.Opcodes.PUTFIELD;
              name == parent2.name -> name
              parent.name == name2 -> anchor2
 
-  - mark all constants depending on an anchor + the constant bootstrap methods referenced by @Parametric,
+  - mark the constant bootstrap methods referenced by @Parametric and the supers referenced by @SuperType
     as requiring an accessor at runtime (ClassData.condyFieldAccessors)
   - for all constants, create the corresponding tree of constant dynamics and record if the constant
     should be stored in a kiddy pool or not (ClassData.condyMap)
@@ -103,7 +108,11 @@ import static org.objectweb.asm.Opcodes.PUTFIELD;
      a variant without the Object is added and delegates to the parametric method with a raw kiddy pool
      (a kiddy pool with the parameters set to null)
    - Parametric constructor initialize an instance field $kiddyPool.
-   - String constant + calls to .intern() stores the constant as constant pool/kiddy pool constant
+   - A constant gets an accessor if it is referenced by an annotation or if it is a kiddy pool constant
+     referenced by the code, the other constants are only ldc-ed, so have no accessor.
+   - The max stack and max locals of the rewritten methods are computed by the ClassWriter.
+   - String constant + calls to .intern() stores the constant as constant pool/kiddy pool constant,
+     the marker (ldc + invokevirtual intern + pop) is removed from the rewritten code
    - the opcodes NEW+INNVOKESPECIAL, INVOKEVIRTUAL, INVOKSTATIC and ANEWARRAY are rewritten as invoke dynamic
      that take the constant pool/kiddy pool constant.
      - the constant pool constant is a constant dynamic if the constant is a constant pool constant
@@ -114,6 +123,9 @@ import static org.objectweb.asm.Opcodes.PUTFIELD;
          - inside a parametric static method, the kiddy pool class is the last parameter
    - TypeRestricted (not final) fields are initialized to their default value in the constructor,
      and putValue on a TypeRestricted field checks if the value is restricted
+   - TypeRestricted instance fields with a restriction that does not depend on the parameters (a constant pool
+     constant with one class) are declared with the class of the restriction, so the field can be flattened,
+     the field instructions that access them are rewritten accordingly
    - TypeRestricted method starts with a prolog that to a call that checks the arguments are restricted
 
    All the creation of the kiddy pool classes, all the type checking of the TypeRestrictions are deferred at runtime,
@@ -136,14 +148,14 @@ public final class ParametricRewriter {
   }
   private record CondyInfo(boolean inKiddyPool, ConstantDynamic constantDynamic) {}
   @SuppressWarnings("CollectionDeclaredAsConcreteClass")
-  private record ClassData(String internalName,
+  record ClassData(String internalName,
                            boolean parametric,
                            HashMap<String, CondyInfo> condyMap,
                            HashSet<String> condyFieldAccessors,
                            LinkedHashMap<Field,FieldRestriction> fieldRestrictionMap,
                            HashSet<Method> methodParametricSet,
                            HashMap<Method, String> methodRestrictionMap) {}
-  private record Analysis(HashMap<String,ClassData> classDataMap) { }
+  record Analysis(Map<String,ClassData> classDataMap) { }
 
   private static final class RewriterException extends RuntimeException {
     RewriterException(String message) {
@@ -222,6 +234,18 @@ public final class ParametricRewriter {
       false);
 
   private static ClassData analyze(byte[] buffer) {
+    var reader = new ClassReader(buffer);
+    var box = new Object() { ClassData classData; };
+    reader.accept(analyzer(null, classData -> box.classData = classData), ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+    return box.classData;
+  }
+
+  /**
+   * Returns a class visitor that analyzes a class, sends the class data to the consumer at the end of the class
+   * and forwards all the events to the class visitor {@code classVisitor}.
+   * The analysis does not need the code of the methods.
+   */
+  static ClassVisitor analyzer(ClassVisitor classVisitor, Consumer<ClassData> consumer) {
     record ProtoCondy(String condyName, String action, List<String> args) {}
 
     var anchorKindMap = new HashMap<String, AnchorKind>();
@@ -232,12 +256,7 @@ public final class ParametricRewriter {
     var methodParametricSet = new HashSet<Method>();
     var methodRestrictionMap = new HashMap<Method, String>();
 
-    var reader = new ClassReader(buffer);
-    var access = reader.getAccess();
-    if ((access & ACC_ABSTRACT) == 0 && (access & ACC_IDENTITY) == 0) {
-      throw new IllegalStateException("class " + reader.getClassName() + " is already declared as a value class");
-    }
-    var cv = new ClassVisitor(ASM9) {
+    return new ClassVisitor(ASM9, classVisitor) {
       private static final String PARAMETRIC_DESCRIPTOR = "L" + Parametric.class.getName().replace('.', '/') + ";";
       private static final String SUPER_TYPE_DESCRIPTOR = "L" + SuperType.class.getName().replace('.', '/') + ";";
       private static final String TYPE_RESTRICTION_DESCRIPTOR = "L" + TypeRestriction.class.getName().replace('.', '/') + ";";
@@ -247,13 +266,18 @@ public final class ParametricRewriter {
 
       @Override
       public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        if ((access & ACC_ABSTRACT) == 0 && (access & ACC_IDENTITY) == 0) {
+          throw new IllegalStateException("class " + name + " is already declared as a value class");
+        }
         internalName = name;
+        super.visit(version, access, name, signature, superName, interfaces);
       }
 
-      private AnnotationVisitor parametricAnnotationVisitor(AnchorKind anchorKind) {
-        return new AnnotationVisitor(ASM9) {
+      private AnnotationVisitor parametricAnnotationVisitor(AnchorKind anchorKind, AnnotationVisitor av) {
+        return new AnnotationVisitor(ASM9, av) {
           @Override
           public void visit(String name, Object value) {
+            super.visit(name, value);
             if (!name.equals("value") || !(value instanceof String constant)) {
               throw new AssertionError("Parametric is malformed !");
             }
@@ -271,10 +295,11 @@ public final class ParametricRewriter {
         };
       }
 
-      private AnnotationVisitor superTypeAnnotationVisitor() {
-        return new AnnotationVisitor(ASM9) {
+      private AnnotationVisitor superTypeAnnotationVisitor(AnnotationVisitor av) {
+        return new AnnotationVisitor(ASM9, av) {
           @Override
           public void visit(String name, Object value) {
+            super.visit(name, value);
             if (!name.equals("value") || !(value instanceof String constant)) {
               throw new AssertionError("SuperType is malformed !");
             }
@@ -284,10 +309,11 @@ public final class ParametricRewriter {
         };
       }
 
-      private AnnotationVisitor restrictionAnnotationVisitor(Consumer<String> valueConsumer) {
-        return new AnnotationVisitor(ASM9) {
+      private AnnotationVisitor restrictionAnnotationVisitor(AnnotationVisitor av, Consumer<String> valueConsumer) {
+        return new AnnotationVisitor(ASM9, av) {
           @Override
           public void visit(String name, Object value) {
+            super.visit(name, value);
             if (!name.equals("value")) {
               throw new AssertionError("TypeRestriction is malformed !");
             }
@@ -298,21 +324,22 @@ public final class ParametricRewriter {
 
       @Override
       public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+        var av = super.visitAnnotation(descriptor, visible);
         if (descriptor.equals(PARAMETRIC_DESCRIPTOR)) {
           parametric = true;
-          return parametricAnnotationVisitor(AnchorKind.ClASS);
+          return parametricAnnotationVisitor(AnchorKind.ClASS, av);
         }
         if (descriptor.equals(SUPER_TYPE_DESCRIPTOR)) {
-          return superTypeAnnotationVisitor();
+          return superTypeAnnotationVisitor(av);
         }
-        return null;
+        return av;
       }
 
       @Override
       public FieldVisitor visitField(int access, String fieldName, String fieldDescriptor, String signature, Object value) {
         if (fieldName.startsWith("$P") && value instanceof String s) {
           // constant pool description
-          System.out.println("  constant pool constant " + fieldName + " value: " + value);
+          Log.debug(() -> "  constant pool constant " + fieldName + " value: " + value);
 
           var tokens = s.split(" ");
           if (tokens.length < 1) {
@@ -324,30 +351,34 @@ public final class ParametricRewriter {
           protoCondies.add(new ProtoCondy(condyName, action, args));
         }
 
-        return new FieldVisitor(ASM9) {
+        var fv = super.visitField(access, fieldName, fieldDescriptor, signature, value);
+        return new FieldVisitor(ASM9, fv) {
           @Override
           public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            var av = super.visitAnnotation(descriptor, visible);
             if (descriptor.equals(TYPE_RESTRICTION_DESCRIPTOR)) {
-              return restrictionAnnotationVisitor(value -> fieldRestrictionMap.put(new Field(fieldName, fieldDescriptor), new FieldRestriction(access, value)));
+              return restrictionAnnotationVisitor(av, value -> fieldRestrictionMap.put(new Field(fieldName, fieldDescriptor), new FieldRestriction(access, value)));
             }
-            return null;
+            return av;
           }
         };
       }
 
       @Override
       public MethodVisitor visitMethod(int access, String methodName, String methodDescriptor, String signature, String[] exceptions) {
-        return new MethodVisitor(ASM9) {
+        var mv = super.visitMethod(access, methodName, methodDescriptor, signature, exceptions);
+        return new MethodVisitor(ASM9, mv) {
           @Override
           public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            var av = super.visitAnnotation(descriptor, visible);
             if (descriptor.equals(PARAMETRIC_DESCRIPTOR)) {
               methodParametricSet.add(new Method(methodName, methodDescriptor));
-              return parametricAnnotationVisitor(AnchorKind.METHOD);
+              return parametricAnnotationVisitor(AnchorKind.METHOD, av);
             }
             if (descriptor.equals(TYPE_RESTRICTION_DESCRIPTOR)) {
-              return restrictionAnnotationVisitor(value -> methodRestrictionMap.put(new Method(methodName, methodDescriptor), value));
+              return restrictionAnnotationVisitor(av, value -> methodRestrictionMap.put(new Method(methodName, methodDescriptor), value));
             }
-            return null;
+            return av;
           }
         };
       }
@@ -498,9 +529,9 @@ public final class ParametricRewriter {
         if (dependencyMap.isEmpty()) {
           return;
         }
-        System.out.println("  dependencies:");
+        Log.debug(() -> "  dependencies:");
         for(var dependencyEntry: dependencyMap.entrySet()) {
-          System.out.println("    anchor " + dependencyEntry.getKey().name + ": " + dependencyEntry.getValue().stream().map(ProtoCondy::condyName).collect(joining(", ")));
+          Log.debug(() -> "    anchor " + dependencyEntry.getKey().name + ": " + dependencyEntry.getValue().stream().map(ProtoCondy::condyName).collect(joining(", ")));
         }
       }
 
@@ -512,46 +543,331 @@ public final class ParametricRewriter {
         }
         dumpDependencyAnalysis(rootMap);
 
-        var kiddyPoolConstants = rootMap.entrySet().stream()
+        // the accessors of the kiddy pool constants are generated by the rewriter if they are referenced
+        return rootMap.entrySet().stream()
             .filter(entry -> entry.getValue().kind == RootInfo.RootKind.ANCHOR)
             .map(Entry::getKey)
             .collect(Collectors.toSet());
-        // an accessor must be generated ?
-        for(var protoCondy: kiddyPoolConstants) {
-          var fieldName = "$" + protoCondy.condyName;
-          condyFieldAccessors.add(fieldName);
-        }
-        return kiddyPoolConstants;
       }
 
       @Override
       public void visitEnd() {
         var kiddyPoolConstants = analyzeCondyDependencies();
         populateCondyMap(kiddyPoolConstants);
+        consumer.accept(new ClassData(internalName, parametric, condyMap, condyFieldAccessors, fieldRestrictionMap, methodParametricSet, methodRestrictionMap));
+        super.visitEnd();
       }
     };
-    reader.accept(cv, 0);
+  }
+
+  static final Driver.Rewriter<ClassData, Analysis> REWRITER = new Driver.Rewriter<>() {
+    @Override
+    public ClassData analyze(byte[] bytecode) {
+      return ParametricRewriter.analyze(bytecode);
+    }
+
+    @Override
+    public String internalName(ClassData classData) {
+      return classData.internalName;
+    }
+
+    @Override
+    public Analysis analysis(Map<String, ClassData> classDataMap) {
+      return new Analysis(classDataMap);
+    }
+
+    @Override
+    public Optional<byte[]> rewrite(byte[] bytecode, Analysis analysis) {
+      return ParametricRewriter.rewrite(bytecode, analysis);
+    }
+
+    @Override
+    public void write(DataOutput output, ClassData classData) throws IOException {
+      writeClassData(output, classData);
+    }
 
-    return new ClassData(cv.internalName, cv.parametric, condyMap, condyFieldAccessors, fieldRestrictionMap, methodParametricSet, methodRestrictionMap);
+    @Override
+    public ClassData read(DataInput input) throws IOException {
+      return readClassData(input);
+    }
+  };
+
+  private static void writeHandle(DataOutput output, Handle handle) throws IOException {
+    output.writeByte(handle.getTag());
+    output.writeUTF(handle.getOwner());
+    output.writeUTF(handle.getName());
+    output.writeUTF(handle.getDesc());
+    output.writeBoolean(handle.isInterface());
   }
 
-  private static void rewrite(List<Path> classes, Analysis analysis) throws IOException {
-    for(var path: classes) {
-      try(var input = Files.newInputStream(path)) {
-        System.out.println("rewrite " + path);
-        var dataOpt = rewrite(input.readAllBytes(), analysis);
-        if (dataOpt.isEmpty()) {
-          System.out.println("  skip as value class");
-          continue;
+  private static Handle readHandle(DataInput input) throws IOException {
+    return new Handle(input.readByte(), input.readUTF(), input.readUTF(), input.readUTF(), input.readBoolean());
+  }
+
+  private static void writeConstantDynamic(DataOutput output, ConstantDynamic constantDynamic) throws IOException {
+    output.writeUTF(constantDynamic.getName());
+    output.writeUTF(constantDynamic.getDescriptor());
+    writeHandle(output, constantDynamic.getBootstrapMethod());
+    output.writeInt(constantDynamic.getBootstrapMethodArgumentCount());
+    for(var i = 0; i < constantDynamic.getBootstrapMethodArgumentCount(); i++) {
+      switch (constantDynamic.getBootstrapMethodArgument(i)) {
+        case String s -> {
+          output.writeByte('S');
+          output.writeUTF(s);
+        }
+        case Integer value -> {
+          output.writeByte('I');
+          output.writeInt(value);
         }
-        Files.write(path, dataOpt.orElseThrow());
+        case Double value -> {
+          output.writeByte('D');
+          output.writeDouble(value);
+        }
+        case Type type -> {
+          output.writeByte('T');
+          output.writeUTF(type.getDescriptor());
+        }
+        case ConstantDynamic condy -> {
+          output.writeByte('C');
+          writeConstantDynamic(output, condy);
+        }
+        case Object argument -> throw new AssertionError("unknown constant " + argument);
       }
     }
   }
 
+  private static ConstantDynamic readConstantDynamic(DataInput input) throws IOException {
+    var name = input.readUTF();
+    var descriptor = input.readUTF();
+    var bsm = readHandle(input);
+    var bsmConstants = new Object[input.readInt()];
+    for(var i = 0; i < bsmConstants.length; i++) {
+      bsmConstants[i] = switch (input.readByte()) {
+        case 'S' -> input.readUTF();
+        case 'I' -> input.readInt();
+        case 'D' -> input.readDouble();
+        case 'T' -> Type.getType(input.readUTF());
+        case 'C' -> readConstantDynamic(input);
+        default -> throw new IOException("invalid constant tag");
+      };
+    }
+    return new ConstantDynamic(name, descriptor, bsm, bsmConstants);
+  }
+
+  private static void writeClassData(DataOutput output, ClassData classData) throws IOException {
+    output.writeUTF(classData.internalName);
+    output.writeBoolean(classData.parametric);
+    output.writeInt(classData.condyMap.size());
+    for(var condyEntry: classData.condyMap.entrySet()) {
+      output.writeUTF(condyEntry.getKey());
+      var condyInfo = condyEntry.getValue();
+      output.writeBoolean(condyInfo.inKiddyPool);
+      writeConstantDynamic(output, condyInfo.constantDynamic);
+    }
+    output.writeInt(classData.condyFieldAccessors.size());
+    for(var condyFieldAccessor: classData.condyFieldAccessors) {
+      output.writeUTF(condyFieldAccessor);
+    }
+    output.writeInt(classData.fieldRestrictionMap.size());
+    for(var fieldEntry: classData.fieldRestrictionMap.entrySet()) {
+      var field = fieldEntry.getKey();
+      var fieldRestriction = fieldEntry.getValue();
+      output.writeUTF(field.name);
+      output.writeUTF(field.descriptor);
+      output.writeInt(fieldRestriction.access);
+      output.writeUTF(fieldRestriction.constant);
+    }
+    output.writeInt(classData.methodParametricSet.size());
+    for(var method: classData.methodParametricSet) {
+      output.writeUTF(method.name);
+      output.writeUTF(method.descriptor);
+    }
+    output.writeInt(classData.methodRestrictionMap.size());
+    for(var methodEntry: classData.methodRestrictionMap.entrySet()) {
+      var method = methodEntry.getKey();
+      output.writeUTF(method.name);
+      output.writeUTF(method.descriptor);
+      output.writeUTF(methodEntry.getValue());
+    }
+  }
+
+  private static ClassData readClassData(DataInput input) throws IOException {
+    var internalName = input.readUTF();
+    var parametric = input.readBoolean();
+    var condyCount = input.readInt();
+    var condyMap = new LinkedHashMap<String, CondyInfo>();
+    for(var i = 0; i < condyCount; i++) {
+      var condyName = input.readUTF();
+      var inKiddyPool = input.readBoolean();
+      condyMap.put(condyName, new CondyInfo(inKiddyPool, readConstantDynamic(input)));
+    }
+    var condyFieldAccessorCount = input.readInt();
+    var condyFieldAccessors = new HashSet<String>();
+    for(var i = 0; i < condyFieldAccessorCount; i++) {
+      condyFieldAccessors.add(input.readUTF());
+    }
+    var fieldCount = input.readInt();
+    var fieldRestrictionMap = new LinkedHashMap<Field, FieldRestriction>();
+    for(var i = 0; i < fieldCount; i++) {
+      var field = new Field(input.readUTF(), input.readUTF());
+      fieldRestrictionMap.put(field, new FieldRestriction(input.readInt(), input.readUTF()));
+    }
+    var methodParametricCount = input.readInt();
+    var methodParametricSet = new HashSet<Method>();
+    for(var i = 0; i < methodParametricCount; i++) {
+      methodParametricSet.add(new Method(input.readUTF(), input.readUTF()));
+    }
+    var methodRestrictionCount = input.readInt();
+    var methodRestrictionMap = new HashMap<Method, String>();
+    for(var i = 0; i < methodRestrictionCount; i++) {
+      methodRestrictionMap.put(new Method(input.readUTF(), input.readUTF()), input.readUTF());
+    }
+    return new ClassData(internalName, parametric, condyMap, condyFieldAccessors, fieldRestrictionMap, methodParametricSet, methodRestrictionMap);
+  }
+
+
+  /**
+   * Returns true if the method is rewritten to take the kiddy pool as supplementary parameter,
+   * i.e. it's a constructor of a parametric class or a parametric method.
+   */
+  static boolean hasKiddyPoolParameter(ClassData classData, String methodName, String methodDescriptor) {
+    return (classData.parametric && methodName.equals("<init>")) ||
+        classData.methodParametricSet.contains(new Method(methodName, methodDescriptor));
+  }
+
+  /**
+   * Returns the descriptor of the class of the restriction of an instance field of a parametric class
+   * if the restriction does not depend on the parameters of the class, i.e. if it is a constant pool constant
+   * {@code restriction} with one class, or null otherwise.
+   * All the species share the same field, so only that kind of restriction can specialize the field storage.
+   * The field has to be private, so all the field references have the declaring class as owner,
+   * a subclass can reference a non-private field with itself as owner and would not be rewritten.
+   */
+  private static String specializedFieldDescriptor(ClassData classData, Field field) {
+    if (!classData.parametric) {
+      return null;
+    }
+    var fieldRestriction = classData.fieldRestrictionMap.get(field);
+    if (fieldRestriction == null || (fieldRestriction.access & (ACC_STATIC | ACC_PRIVATE)) != ACC_PRIVATE) {
+      return null;
+    }
+    var condyInfo = classData.condyMap.get(fieldRestriction.constant);
+    if (condyInfo == null || condyInfo.inKiddyPool) {
+      return null;
+    }
+    var constantDynamic = condyInfo.constantDynamic;
+    if (constantDynamic.getBootstrapMethodArgumentCount() != 2 || !constantDynamic.getBootstrapMethodArgument(0).equals("restriction") ||
+        !(constantDynamic.getBootstrapMethodArgument(1) instanceof Type type) || type.getSort() != Type.OBJECT) {
+      return null;
+    }
+    var descriptor = type.getDescriptor();
+    return descriptor.equals(field.descriptor) ? null : descriptor;
+  }
+
+  /**
+   * Returns the instance fields of the class declared with the class of their restriction by the rewriter
+   * (see {@link #specializedFieldDescriptor(ClassData, Field)}), the new descriptor indexed by
+   * the name and the descriptor of the field separated by a dot.
+   */
+  static Map<String, String> specializedFields(ClassData classData) {
+    if (!classData.parametric || classData.fieldRestrictionMap.isEmpty()) {
+      return Map.of();
+    }
+    var specializedFields = new HashMap<String, String>();
+    for(var field: classData.fieldRestrictionMap.keySet()) {
+      var descriptor = specializedFieldDescriptor(classData, field);
+      if (descriptor != null) {
+        specializedFields.put(field.name + "." + field.descriptor, descriptor);
+      }
+    }
+    return specializedFields;
+  }
 
   private static Optional<byte[]> rewrite(byte[] buffer, Analysis analysis) {
     var reader = new ClassReader(buffer);
+    // the methods that are not rewritten are copied as is, the maxs of the others are computed
+    var writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+    return rewriter(reader, analysis, writer).map(cv -> {
+      reader.accept(cv, 0);
+      return addKiddyPoolTemplate(reader.getClassName(), writer.toByteArray(), analysis);
+    });
+  }
+
+  /**
+   * Adds to a rewritten class used as raw class of kiddy pool classes (a parametric class or a class
+   * with parametric methods) a synthetic method that returns the template of its kiddy pool classes,
+   * so the runtime does not have to read and parse the class file (see {@link KiddyPoolTemplate}).
+   * @param internalName the internal name of the class.
+   * @param bytecode the bytecode of the class once rewritten by all the rewriters.
+   * @param analysis the analysis of the parametric rewriter.
+   * @return the bytecode of the class with the template method or the same bytecode.
+   */
+  static byte[] addKiddyPoolTemplate(String internalName, byte[] bytecode, Analysis analysis) {
+    var classData = analysis.classDataMap.get(internalName);
+    if (classData == null || (!classData.parametric && classData.methodParametricSet.isEmpty())) {
+      return bytecode;
+    }
+    var template = KiddyPoolTemplate.encode(KiddyPoolTemplate.strip(bytecode));
+    if (template == null) {
+      Log.info("kiddy pool template of " + internalName + " too big, it will be computed at runtime");
+      return bytecode;
+    }
+    var reader = new ClassReader(bytecode);
+    var writer = new ClassWriter(reader, 0);
+    reader.accept(new ClassVisitor(ASM9, writer) {
+      @Override
+      public void visitEnd() {
+        var mv = cv.visitMethod(ACC_STATIC | ACC_PRIVATE | ACC_SYNTHETIC, KiddyPoolTemplate.ACCESSOR_NAME, "()Ljava/lang/String;", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn(template);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(1, 0);
+        mv.visitEnd();
+        super.visitEnd();
+      }
+    }, 0);
+    return writer.toByteArray();
+  }
+
+  private static final int CONSTANT_FIELDREF_TAG = 9;
+
+  /**
+   * Returns true if the constant pool of the class references a field with a type restriction
+   * of a parametric class, so a putfield on that field (or a getfield if the field is specialized) has to be rewritten.
+   */
+  private static boolean referencesRestrictedField(ClassReader reader, Map<String, ClassData> classDataMap) {
+    var charBuffer = new char[reader.getMaxStringLength()];
+    for(var i = 1; i < reader.getItemCount(); i++) {
+      var offset = reader.getItem(i);
+      if (offset == 0 || reader.readByte(offset - 1) != CONSTANT_FIELDREF_TAG) {
+        continue;
+      }
+      var ownerClassData = classDataMap.get(reader.readClass(offset, charBuffer));
+      if (ownerClassData == null || !ownerClassData.parametric || ownerClassData.fieldRestrictionMap.isEmpty()) {
+        continue;
+      }
+      var nameAndType = reader.getItem(reader.readUnsignedShort(offset + 2));
+      var field = new Field(reader.readUTF8(nameAndType, charBuffer), reader.readUTF8(nameAndType + 2, charBuffer));
+      if (ownerClassData.fieldRestrictionMap.containsKey(field)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns a class visitor that rewrites the class read by the reader and sends the rewritten class to
+   * the class visitor {@code classVisitor} or an empty optional if the class should not be rewritten.
+   *
+   * A class is not rewritten if it has no constant, is not parametric, has no parametric method,
+   * no method with a type restriction and does not store a value in a field with a type restriction,
+   * because the code of its methods can not reference a constant so can not be rewritten.
+   * Inside a rewritten class, the methods that can not be rewritten are not visited by the rewriter
+   * (so a {@link ClassWriter} created with the class reader copies them as is).
+   * The rewritten methods are sent with an upper bound of their max stack and max locals,
+   * so the {@link ClassWriter} should be created with {@link ClassWriter#COMPUTE_MAXS}.
+   */
+  static Optional<ClassVisitor> rewriter(ClassReader reader, Analysis analysis, ClassVisitor classVisitor) {
     var isInterface = (reader.getAccess() & ACC_INTERFACE) != 0;
     var internalName = reader.getClassName();
     var supername = reader.getSuperName();
@@ -560,35 +876,61 @@ public final class ParametricRewriter {
     if (classData == null) {
       return Optional.empty();
     }
-    var writer = new ClassWriter(0);
-    var cv = new ClassVisitor(ASM9, writer) {
+    var rewriteCode = !classData.condyMap.isEmpty() || referencesRestrictedField(reader, classDataMap);
+    if (!rewriteCode && !classData.parametric && classData.methodParametricSet.isEmpty() && classData.methodRestrictionMap.isEmpty()) {
+      return Optional.empty();
+    }
+    var cv = new ClassVisitor(ASM9, classVisitor) {
+      private final ArrayList<String> condyFields = new ArrayList<>();
+      private final HashSet<String> kiddyPoolRefs = new HashSet<>();
+
       private CondyInfo findCondyInfo(String ldcConstant) {
         var condyInfo =  classData.condyMap.get(ldcConstant);
         if (condyInfo == null) {
           throw new RewriterException("unknown constant pool constant '" + ldcConstant + "' in class " + internalName);
         }
+        if (condyInfo.inKiddyPool) {
+          // the constant is found at runtime using its accessor
+          kiddyPoolRefs.add(ldcConstant);
+        }
         return condyInfo;
       }
 
       @Override
       public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
         if (name.startsWith("$P")) {
-          var condyName = name.substring(1);
-          var condyInfo = findCondyInfo(condyName);
-          if (classData.condyFieldAccessors.contains(name)) {
-            // we need accessors for the constant dynamic referenced from outside
-            var mv = cv.visitMethod(ACC_STATIC | ACC_PRIVATE | ACC_SYNTHETIC, name, "()Ljava/lang/Object;", null, null);
-            mv.visitCode();
-            mv.visitLdcInsn(condyInfo.constantDynamic);
-            mv.visitInsn(ARETURN);
-            mv.visitMaxs(1, 0);
-            mv.visitEnd();
-          }
+          // the accessors are generated at the end, when all the references from the code are known
+          condyFields.add(name);
           return null;
         }
+        var specializedDescriptor = specializedFieldDescriptor(classData, new Field(name, descriptor));
+        if (specializedDescriptor != null) {
+          Log.debug(() -> "  rewrite field " + name + "." + descriptor + " as " + specializedDescriptor);
+          return super.visitField(access, name, specializedDescriptor, signature, value);
+        }
         return super.visitField(access, name, descriptor, signature, value);
       }
 
+      private void condyAccessors() {
+        for(var name: condyFields) {
+          var condyName = name.substring(1);
+          if (!classData.condyFieldAccessors.contains(name) && !kiddyPoolRefs.contains(condyName)) {
+            continue;  // no accessor needed
+          }
+          var condyInfo = classData.condyMap.get(condyName);
+          if (condyInfo == null) {
+            throw new RewriterException("unknown constant pool constant '" + condyName + "' in class " + internalName);
+          }
+          // we need accessors for the constant dynamic referenced from outside
+          var mv = cv.visitMethod(ACC_STATIC | ACC_PRIVATE | ACC_SYNTHETIC, name, "()Ljava/lang/Object;", null, null);
+          mv.visitCode();
+          mv.visitLdcInsn(condyInfo.constantDynamic);
+          mv.visitInsn(ARETURN);
+          mv.visitMaxs(1, 0);
+          mv.visitEnd();
+        }
+      }
+
       private void delegateMethod(int access, String name, String methodDescriptor, String newMethodDescriptor, Handle bsm, Object... bsmConstants) {
         var mv = super.visitMethod(access, name, methodDescriptor, null, null);
         mv.visitCode();
@@ -655,13 +997,14 @@ public final class ParametricRewriter {
                   var constant = fieldRestriction.constant;
                   mv.visitVarInsn(ALOAD, 0);
                   var condyInfo = findCondyInfo(constant);
-                  var desc = MethodTypeDesc.of(ClassDesc.ofDescriptor(field.descriptor));
+                  var fieldDescriptor = Optional.ofNullable(specializedFieldDescriptor(classData, field)).orElse(field.descriptor);
+                  var desc = MethodTypeDesc.of(ClassDesc.ofDescriptor(fieldDescriptor));
                   if (condyInfo.inKiddyPool) {
                     mv.visitVarInsn(ALOAD, kiddyPoolSlot); // load $kiddyPool
                     desc = desc.insertParameterTypes(0, CD_Object);
                   }
                   mv.visitInvokeDynamicInsn("initDefault", desc.descriptorString(), BSM_INIT_DEFAULT, constant);
-                  mv.visitFieldInsn(PUTFIELD, internalName, field.name, field.descriptor);
+                  mv.visitFieldInsn(PUTFIELD, internalName, field.name, fieldDescriptor);
                 }
                 return;
               }
@@ -670,10 +1013,14 @@ public final class ParametricRewriter {
 
             @Override
             public void visitMaxs(int maxStack, int maxLocals) {
+              // upper bounds, the exact values are computed by the ClassWriter
               super.visitMaxs(Math.max(maxStack, 2) , maxLocals + 1);
             }
           };
         } else {
+          if (!rewriteCode && !parametricMethod && !classData.methodRestrictionMap.containsKey(new Method(methodName, methodDescriptor))) {
+            return super.visitMethod(access, methodName, methodDescriptor, signature, exceptions);
+          }
           if (parametricMethod) {
             var desc = MethodTypeDesc.ofDescriptor(methodDescriptor);
             desc = desc.insertParameterTypes(desc.parameterCount(), CD_Object);
@@ -691,7 +1038,8 @@ public final class ParametricRewriter {
         var kiddyPoolSlot = (isStatic? -1 : 0) + (Type.getArgumentsAndReturnSizes(methodDescriptor) >> 2);  // if the method is parametric
 
         return new MethodVisitor(ASM9, delegate) {
-          private String ldcConstant;
+          private String markerConstant;
+          private boolean markerInterned;
           private Object constantValue;
           private boolean removeDUP;
 
@@ -730,8 +1078,79 @@ public final class ParametricRewriter {
             }
           }
 
+          // the string constant of a marker "Pn".intern() is delayed until the next instruction,
+          // if the marker is followed by a pop, the three instructions are removed,
+          // otherwise the delayed instructions are emitted as is
+          private void flushMarker() {
+            var constant = markerConstant;
+            if (constant == null) {
+              return;
+            }
+            markerConstant = null;
+            mv.visitLdcInsn(constant);
+            if (markerInterned) {
+              markerInterned = false;
+              mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "intern", "()Ljava/lang/String;", false);
+            }
+          }
+
+          @Override
+          public void visitLabel(Label label) {
+            flushMarker();
+            super.visitLabel(label);
+          }
+
+          @Override
+          public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+            flushMarker();
+            super.visitFrame(type, numLocal, local, numStack, stack);
+          }
+
+          @Override
+          public void visitIntInsn(int opcode, int operand) {
+            flushMarker();
+            super.visitIntInsn(opcode, operand);
+          }
+
+          @Override
+          public void visitJumpInsn(int opcode, Label label) {
+            flushMarker();
+            super.visitJumpInsn(opcode, label);
+          }
+
+          @Override
+          public void visitIincInsn(int varIndex, int increment) {
+            flushMarker();
+            super.visitIincInsn(varIndex, increment);
+          }
+
+          @Override
+          public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            flushMarker();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+          }
+
+          @Override
+          public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            flushMarker();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+          }
+
+          @Override
+          public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            flushMarker();
+            super.visitMultiANewArrayInsn(descriptor, numDimensions);
+          }
+
+          @Override
+          public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+            flushMarker();
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+          }
+
           @Override
           public void visitVarInsn(int opcode, int varIndex) {
+            flushMarker();
             if (parametricMethod && varIndex >= kiddyPoolSlot) {
               varIndex++;
             }
@@ -740,21 +1159,39 @@ public final class ParametricRewriter {
 
           @Override
           public void visitLdcInsn(Object value) {
+            flushMarker();
             if (value instanceof String s) {
-              ldcConstant = s;
+              markerConstant = s;
+              return;
             }
             super.visitLdcInsn(value);
           }
 
           @Override
           public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            flushMarker();
             var classData = classDataMap.get(owner);
+            if (opcode == GETFIELD && classData != null && classData.parametric) {
+              var specializedDescriptor = specializedFieldDescriptor(classData, new Field(name, descriptor));
+              if (specializedDescriptor != null) {
+                super.visitFieldInsn(opcode, owner, name, specializedDescriptor);
+                return;
+              }
+            }
             if (opcode == PUTFIELD && classData != null && classData.parametric) {
-              var fieldRestriction = classData.fieldRestrictionMap.get(new Field(name, descriptor));
+              var field = new Field(name, descriptor);
+              var fieldRestriction = classData.fieldRestrictionMap.get(field);
               if (fieldRestriction != null) {
                 var constant = fieldRestriction.constant;
                 var condyInfo = findCondyInfo(constant);
-                var desc = MethodTypeDesc.of(CD_Void, ClassDesc.ofInternalName(owner), ClassDesc.ofDescriptor(descriptor));
+                var specializedDescriptor = specializedFieldDescriptor(classData, field);
+                var fieldDescriptor = descriptor;
+                if (specializedDescriptor != null) {
+                  // the setter is typed with the class of the restriction
+                  mv.visitTypeInsn(CHECKCAST, Type.getType(specializedDescriptor).getInternalName());
+                  fieldDescriptor = specializedDescriptor;
+                }
+                var desc = MethodTypeDesc.of(CD_Void, ClassDesc.ofInternalName(owner), ClassDesc.ofDescriptor(fieldDescriptor));
                 if (condyInfo.inKiddyPool) {
                   loadKiddyPool();
                   desc = desc.insertParameterTypes(1, CD_Object);
@@ -768,15 +1205,15 @@ public final class ParametricRewriter {
 
           @Override
           public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
-            if (owner.equals("java/lang/String") && name.equals("intern") && descriptor.equals("()Ljava/lang/String;") && ldcConstant != null) {
+            if (owner.equals("java/lang/String") && name.equals("intern") && descriptor.equals("()Ljava/lang/String;") && markerConstant != null && !markerInterned) {
               // record constant
-              var constant = ldcConstant;
-              ldcConstant = null;
+              var constant = markerConstant;
               var condyInfo = findCondyInfo(constant);
               constantValue = condyInfo.inKiddyPool ?  constant : condyInfo.constantDynamic;
-              mv.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+              markerInterned = true;
               return;
             }
+            flushMarker();
             if (owner.equals(RT_INTERNAL) && name.equals("ldc") && descriptor.equals("()Ljava/lang/Object;")) {
               var constant = constantValue;
               if (constant == null) {
@@ -866,6 +1303,7 @@ public final class ParametricRewriter {
 
           @Override
           public void visitTypeInsn(int opcode, String type) {
+            flushMarker();
             switch (opcode) {
               case NEW -> {
                 if (constantValue != null) {  // remove NEW DUP
@@ -892,6 +1330,12 @@ public final class ParametricRewriter {
 
           @Override
           public void visitInsn(int opcode) {
+            if (opcode == POP && markerInterned) {  // remove the marker
+              markerConstant = null;
+              markerInterned = false;
+              return;
+            }
+            flushMarker();
             if (opcode == DUP && removeDUP) {
               removeDUP = false;
               return;  // skip DUP
@@ -901,6 +1345,9 @@ public final class ParametricRewriter {
 
           @Override
           public void visitMaxs(int maxStack, int maxLocals) {
+            flushMarker();
+            // upper bounds for the visitors downstream (the ValueRewriter analyzes the code),
+            // the exact values are computed by the ClassWriter
             maxStack++;
             maxLocals++;
             var constant = classData.methodRestrictionMap.get(new Method(methodName, methodDescriptor));
@@ -922,6 +1369,7 @@ public final class ParametricRewriter {
 
       @Override
       public void visitEnd() {
+        condyAccessors();
         if (classData.parametric) {  // parametric class
           if (!isInterface) {
             var fv = cv.visitField(ACC_PRIVATE | ACC_FINAL | ACC_SYNTHETIC, "$kiddyPool", "Ljava/lang/Object;", null, null);
@@ -940,44 +1388,28 @@ public final class ParametricRewriter {
         super.visitEnd();
       }
     };
-    reader.accept(cv, 0);
-
-    return Optional.of(writer.toByteArray());
+    return Optional.of(cv);
   }
 
 
 
-  private static Analysis analyze(List<Path> classes) throws IOException {
-    var classDataMap = new HashMap<String, ClassData>();
-    for (var path : classes) {
-      try (var input = Files.newInputStream(path)) {
-        var bytecode = input.readAllBytes();
-        System.out.println("analyze " + path);
-        var classData = analyze(bytecode);
-       classDataMap.put(classData.internalName, classData);
+  public static void main(String[] args) throws IOException {
+    var options = Driver.Options.parse(args);
+    var driver = new Driver<>("parametric", REWRITER, options);
+    if (options.input() != null) {
+      try(var jar = Jar.open(options.input())) {
+        var analysis = driver.analyze(jar);
+        driver.rewrite(jar, options.output(), analysis);
       }
+      return;
     }
-    return new Analysis(classDataMap);
-  }
-
-  private static List<Path> classes(Path folder) throws IOException {
-    if (!Files.exists(folder)) {
-      return List.of();
-    }
-    try(var paths = Files.walk(folder)) {
-      return paths
-          .filter(p -> p.toString().endsWith(".class"))
-          .toList();
-    }
-  }
 
-  public static void main(String[] args) throws IOException {
-    var main = classes(Path.of("target/classes"));
-    var test = classes(Path.of("target/test-classes"));
+    var main = Driver.classes(Path.of("target/classes"));
+    var test = Driver.classes(Path.of("target/test-classes"));
     var classes = Stream.concat(main.stream(), test.stream()).toList();
 
-    var analysis = analyze(classes);
+    var analysis = driver.analyze(classes);
     //analysis.dump();
-    rewrite(classes, analysis);
+    driver.rewrite(classes, analysis);
   }
 }
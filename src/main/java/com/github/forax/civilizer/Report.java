@@ -0,0 +1,193 @@
+package com.github.forax.civilizer;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.objectweb.asm.Opcodes.ASM9;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+
+/**
+ * A machine-readable report of a run of a {@link Driver}, written as JSON.
+ *
+ * The report contains the wall time of each phase, the number of classes analyzed, rewritten and skipped,
+ * and for each rewritten class, the size of the bytecode before and after the rewrite and the number of
+ * {@code invokedynamic}, {@code Objects.requireNonNull} and {@code @NullRestricted} fields inserted by the rewrite.
+ * The inserted elements are found by scanning the bytecode before and after the rewrite,
+ * so the rewriters do not have to collaborate and nothing is computed if there is no report.
+ */
+final class Report {
+  private static final String JDK_NULL_RESTRICTED_DESCRIPTOR = "Ljdk/internal/vm/annotation/NullRestricted;";
+
+  /**
+   * Number of invokedynamic, requireNonNull and null restricted fields of a class.
+   */
+  record Counts(int invokedynamic, int requireNonNull, int nullRestricted) {
+    Counts minus(Counts counts) {
+      return new Counts(invokedynamic - counts.invokedynamic, requireNonNull - counts.requireNonNull, nullRestricted - counts.nullRestricted);
+    }
+
+    static Counts of(byte[] bytecode) {
+      var box = new Object() { int invokedynamic, requireNonNull, nullRestricted; };
+      var reader = new ClassReader(bytecode);
+      reader.accept(new ClassVisitor(ASM9) {
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+          return new FieldVisitor(ASM9) {
+            @Override
+            public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+              if (descriptor.equals(JDK_NULL_RESTRICTED_DESCRIPTOR)) {
+                box.nullRestricted++;
+              }
+              return null;
+            }
+          };
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+          return new MethodVisitor(ASM9) {
+            @Override
+            public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+              box.invokedynamic++;
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+              if (opcode == INVOKESTATIC && owner.equals("java/util/Objects") && name.equals("requireNonNull")) {
+                box.requireNonNull++;
+              }
+            }
+          };
+        }
+      }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+      return new Counts(box.invokedynamic, box.requireNonNull, box.nullRestricted);
+    }
+  }
+
+  private record Rewrite(String name, int before, int after, Counts inserted) {}
+
+  private final String rewriterName;
+  private final boolean detailed;
+  private final LinkedHashMap<String, Long> phaseMap = new LinkedHashMap<>();
+  private final LongAdder analyzed = new LongAdder();
+  private final LongAdder rewritten = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final ConcurrentLinkedQueue<Rewrite> rewrites = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Creates a report.
+   * @param rewriterName the name of the rewriter.
+   * @param detailed true if the size and the inserted elements of each rewritten class are recorded.
+   */
+  Report(String rewriterName, boolean detailed) {
+    this.rewriterName = rewriterName;
+    this.detailed = detailed;
+  }
+
+  void phase(String name, long nanos) {
+    synchronized (phaseMap) {
+      phaseMap.merge(name, nanos, Long::sum);
+    }
+  }
+
+  void analyzed() {
+    analyzed.increment();
+  }
+
+  void skipped() {
+    skipped.increment();
+  }
+
+  void rewritten(String name, byte[] before, byte[] after) {
+    rewritten.increment();
+    if (detailed) {
+      rewrites.add(new Rewrite(name, before.length, after.length, Counts.of(after).minus(Counts.of(before))));
+    }
+  }
+
+  long analyzedCount() {
+    return analyzed.sum();
+  }
+
+  long rewrittenCount() {
+    return rewritten.sum();
+  }
+
+  long skippedCount() {
+    return skipped.sum();
+  }
+
+  private static String string(String s) {
+    var builder = new StringBuilder("\"");
+    for(var i = 0; i < s.length(); i++) {
+      var c = s.charAt(i);
+      switch (c) {
+        case '"' -> builder.append("\\\"");
+        case '\\' -> builder.append("\\\\");
+        default -> {
+          if (c < ' ') {
+            builder.append("\\u%04x".formatted((int) c));
+          } else {
+            builder.append(c);
+          }
+        }
+      }
+    }
+    return builder.append('"').toString();
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+  }
+
+  void write(Path path) throws IOException {
+    var rewriteList = rewrites.stream().sorted(Comparator.comparing(Rewrite::name)).toList();
+    var builder = new StringBuilder();
+    builder.append("{\n");
+    builder.append("  \"rewriter\": ").append(string(rewriterName)).append(",\n");
+    builder.append("  \"phases\": {");
+    synchronized (phaseMap) {
+      var separator = "";
+      for(var phaseEntry: phaseMap.entrySet()) {
+        builder.append(separator).append("\n    ").append(string(phaseEntry.getKey())).append(": { \"millis\": ").append(millis(phaseEntry.getValue())).append(" }");
+        separator = ",";
+      }
+    }
+    builder.append("\n  },\n");
+    builder.append("  \"classes\": { \"analyzed\": ").append(analyzed.sum())
+        .append(", \"rewritten\": ").append(rewritten.sum())
+        .append(", \"skipped\": ").append(skipped.sum()).append(" },\n");
+    builder.append("  \"bytes\": { \"before\": ").append(rewriteList.stream().mapToLong(Rewrite::before).sum())
+        .append(", \"after\": ").append(rewriteList.stream().mapToLong(Rewrite::after).sum()).append(" },\n");
+    builder.append("  \"inserted\": { \"invokedynamic\": ").append(rewriteList.stream().mapToInt(rewrite -> rewrite.inserted.invokedynamic).sum())
+        .append(", \"requireNonNull\": ").append(rewriteList.stream().mapToInt(rewrite -> rewrite.inserted.requireNonNull).sum())
+        .append(", \"nullRestricted\": ").append(rewriteList.stream().mapToInt(rewrite -> rewrite.inserted.nullRestricted).sum()).append(" },\n");
+    builder.append("  \"rewrites\": [");
+    var separator = "";
+    for(var rewrite: rewriteList) {
+      var inserted = rewrite.inserted;
+      builder.append(separator).append("\n    { \"name\": ").append(string(rewrite.name))
+          .append(", \"before\": ").append(rewrite.before)
+          .append(", \"after\": ").append(rewrite.after)
+          .append(", \"invokedynamic\": ").append(inserted.invokedynamic)
+          .append(", \"requireNonNull\": ").append(inserted.requireNonNull)
+          .append(", \"nullRestricted\": ").append(inserted.nullRestricted).append(" }");
+      separator = ",";
+    }
+    builder.append("\n  ]\n}\n");
+    Files.writeString(path, builder);
+  }
+}
@@ -12,36 +12,73 @@ import org.objectweb.asm.ByteVector;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
 import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.TypePath;
 import org.objectweb.asm.TypeReference;
-
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.lang.constant.MethodTypeDesc;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static java.lang.constant.ConstantDescs.CD_Object;
 import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
 import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
 import static org.objectweb.asm.Opcodes.ACC_STATIC;
 import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ANEWARRAY;
 import static org.objectweb.asm.Opcodes.ASM9;
+import static org.objectweb.asm.Opcodes.ATHROW;
 import static org.objectweb.asm.Opcodes.CHECKCAST;
 import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.MULTIANEWARRAY;
+import static org.objectweb.asm.Opcodes.NEWARRAY;
 import static org.objectweb.asm.Opcodes.POP;
 import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SWAP;
 import static org.objectweb.asm.Opcodes.V23;
 
 /**
@@ -61,7 +98,8 @@ import static org.objectweb.asm.Opcodes.V23;
  *    (TODO: should verify that all fields are initialized before the call to super())
  *    add annotation jdk.internal.vm.annotation.NullRestricted if @NonNull is set
  *  - at method entry, add Objects.requireNonNull for all @NonNull parameters
- *  - add attribute LoadableDescriptors wih all method parameter types, return type and field types that are
+ *  - add attribute LoadableDescriptors wih all method parameter types, return type and field types,
+ *    and all the types used by the code (classes, fields and methods accessed), that are
  *    either annotated with @Value or @ImplicitlyConstructible
  */
 public final class ValueRewriter {
@@ -91,33 +129,279 @@ public final class ValueRewriter {
 
   private enum NullKind { NONNULL, NULLABLE }
 
-  private record ClassData(int access, String internalName, String superName, Outer outer, TypeKind typeKind, NullScope nullScope, Set<String> descriptors, Map<String,FieldData> fieldDataMap, Map<String,MethodData> methodDataMap) { }
-  private record FieldData(NullKind nullKind) {}
-  private record MethodData(NullScope nullScope, Map<Integer, NullKind> parameterMap) {}
+  /**
+   * The analysis of a class, the strings come from the {@link Symbols} of the rewriter,
+   * so they are shared by all the analyses.
+   * @param descriptors the sorted loadable descriptors of the fields and the methods.
+   * @param fields the fields annotated with @NonNull or @Nullable.
+   * @param methods all the methods.
+   * @param referenceFields the instance fields with a reference type (name.descriptor) of a value class
+   *                        which constructors can not reject the zero instance, null otherwise
+   *                        (see {@link #inferImplicitlyConstructible(Analysis, Set)}).
+   */
+  record ClassData(int access, String internalName, String superName, Outer outer, TypeKind typeKind, NullScope nullScope, List<String> descriptors, Members fields, Members methods,
+                   List<String> referenceFields) { }
+
+  private static final int[] EMPTY_INTS = {};
+  private static final String[] EMPTY_STRINGS = {};
+
+  /**
+   * A flat table of the members (fields or methods) of a class sorted by name then by descriptor.
+   * For each member, {@code kinds} stores the ordinal of the NullKind of a field or the ordinal of the NullScope
+   * of a method (-1 if there is none).
+   * The parameters of the method at index {@code i} are stored in {@code parameters} from {@code starts[i]}
+   * to {@code starts[i + 1]}, sorted, each one encoded as {@code (parameter + 1) << 1 | nullKind.ordinal()},
+   * the return type being the parameter -1. {@code starts} is empty if no method has an annotated parameter.
+   */
+  record Members(String[] names, String[] descriptors, byte[] kinds, int[] starts, int[] parameters) {
+    static final Members EMPTY = new Members(EMPTY_STRINGS, EMPTY_STRINGS, new byte[0], EMPTY_INTS, EMPTY_INTS);
+
+    int size() {
+      return names.length;
+    }
+
+    int indexOf(String name, String descriptor) {
+      var low = 0;
+      var high = names.length - 1;
+      while (low <= high) {
+        var middle = (low + high) >>> 1;
+        var diff = names[middle].compareTo(name);
+        if (diff == 0) {
+          diff = descriptors[middle].compareTo(descriptor);
+        }
+        if (diff < 0) {
+          low = middle + 1;
+        } else if (diff > 0) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      return -1;
+    }
+
+    NullKind nullKind(int index) {
+      return NullKind.values()[kinds[index]];
+    }
+
+    NullScope nullScope(int index) {
+      var kind = kinds[index];
+      return kind == -1 ? null : NullScope.values()[kind];
+    }
+
+    boolean hasParameters(int index) {
+      return starts.length != 0 && starts[index] != starts[index + 1];
+    }
+
+    /** Returns the NullKind of an annotated parameter or null. */
+    NullKind parameterNullKind(int index, int parameter) {
+      if (starts.length == 0) {
+        return null;
+      }
+      for(var i = starts[index]; i < starts[index + 1]; i++) {
+        var encoded = parameters[i];
+        if ((encoded >> 1) - 1 == parameter) {
+          return NullKind.values()[encoded & 1];
+        }
+      }
+      return null;
+    }
+
+    Map<Integer, NullKind> parameterMap(int index) {
+      var parameterMap = new LinkedHashMap<Integer, NullKind>();
+      if (starts.length != 0) {
+        for(var i = starts[index]; i < starts[index + 1]; i++) {
+          var encoded = parameters[i];
+          parameterMap.put((encoded >> 1) - 1, NullKind.values()[encoded & 1]);
+        }
+      }
+      return parameterMap;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Members members &&
+          Arrays.equals(names, members.names) &&
+          Arrays.equals(descriptors, members.descriptors) &&
+          Arrays.equals(kinds, members.kinds) &&
+          Arrays.equals(starts, members.starts) &&
+          Arrays.equals(parameters, members.parameters);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(names) ^ Arrays.hashCode(descriptors) ^ Arrays.hashCode(kinds) ^ Arrays.hashCode(parameters);
+    }
+
+    @Override
+    public String toString() {
+      return IntStream.range(0, size())
+          .mapToObj(i -> names[i] + "." + descriptors[i] + "=" + kinds[i] + parameterMap(i))
+          .collect(Collectors.joining(", ", "{", "}"));
+    }
+  }
+
+  /**
+   * Gathers the members of a class, a member added twice replaces the previous one.
+   */
+  private static final class MembersBuilder {
+    private record Member(String name, String descriptor, int kind, Map<Integer, NullKind> parameterMap) {}
+
+    private final Symbols symbols;
+    private final HashMap<String, Member> memberMap = new HashMap<>();
+
+    MembersBuilder(Symbols symbols) {
+      this.symbols = symbols;
+    }
+
+    void add(String name, String descriptor, int kind, Map<Integer, NullKind> parameterMap) {
+      memberMap.put(name + "." + descriptor, new Member(symbols.symbol(name), symbols.symbol(descriptor), kind, parameterMap));
+    }
+
+    Members build() {
+      if (memberMap.isEmpty()) {
+        return Members.EMPTY;
+      }
+      var members = memberMap.values().stream()
+          .sorted(Comparator.comparing(Member::name).thenComparing(Member::descriptor))
+          .toArray(Member[]::new);
+      var size = members.length;
+      var names = new String[size];
+      var descriptors = new String[size];
+      var kinds = new byte[size];
+      var starts = new int[size + 1];
+      var parameterCount = 0;
+      for(var member: members) {
+        parameterCount += member.parameterMap.size();
+      }
+      var parameters = parameterCount == 0 ? EMPTY_INTS : new int[parameterCount];
+      var offset = 0;
+      for(var i = 0; i < size; i++) {
+        var member = members[i];
+        names[i] = member.name;
+        descriptors[i] = member.descriptor;
+        kinds[i] = (byte) member.kind;
+        starts[i] = offset;
+        for(var parameterEntry: new TreeMap<>(member.parameterMap).entrySet()) {
+          parameters[offset++] = (parameterEntry.getKey() + 1) << 1 | parameterEntry.getValue().ordinal();
+        }
+      }
+      starts[size] = offset;
+      return new Members(names, descriptors, kinds, parameterCount == 0 ? EMPTY_INTS : starts, parameters);
+    }
+  }
 
-  private static String mangleField(String fieldName, String fieldDescriptor) {
-    return fieldName + "." + fieldDescriptor;
+  /**
+   * The table of the strings (internal names, member names and descriptors) of the analyses done by a rewriter,
+   * each string is stored once so the class data of all the classes share the same strings.
+   * Unlike {@link String#intern()}, the table is not global to the VM, so the threads of a parallel analysis
+   * do not contend on the VM string table and the table is reclaimed with the rewriter.
+   */
+  static final class Symbols {
+    private final ConcurrentHashMap<String, String> symbolMap = new ConcurrentHashMap<>();
+
+    String symbol(String s) {
+      if (s == null) {
+        return null;
+      }
+      var symbol = symbolMap.get(s);
+      if (symbol != null) {
+        return symbol;
+      }
+      symbol = symbolMap.putIfAbsent(s, s);
+      return symbol == null ? s : symbol;
+    }
   }
 
-  private static String mangleMethod(String methodName, String methodDescriptor) {
-    return methodName + methodDescriptor;
+  private static List<String> descriptorList(Set<String> descriptors, Symbols symbols) {
+    return descriptors.stream().map(symbols::symbol).sorted().toList();
   }
 
-  private record Analysis(Map<String,ClassData> classDataMap) {
+  /**
+   * The analysis of all the classes.
+   * @param classDataMap the class data indexed by internal name.
+   * @param nullScopeMap the resolved null scope of the classes indexed by internal name,
+   *                     filled when the null scope of a class is resolved (see {@link #nullScope(ClassData)}).
+   */
+  record Analysis(Map<String,ClassData> classDataMap, ConcurrentHashMap<String, Optional<NullScope>> nullScopeMap) {
+    Analysis(Map<String,ClassData> classDataMap) {
+      this(classDataMap, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Returns the null scope of a class, declared by the class, by the enclosing method or by an enclosing class,
+     * or null if there is none.
+     * The chain of the enclosing classes is walked until a class with a declared or an already resolved null scope,
+     * all the classes of the chain are resolved at once, so the chain is walked only once.
+     */
+    NullScope nullScope(ClassData classData) {
+      var resolved = nullScopeMap.get(classData.internalName);
+      if (resolved != null) {
+        return resolved.orElse(null);
+      }
+      var chain = new ArrayList<String>();
+      var current = classData;
+      Optional<NullScope> nullScope;
+      for(;;) {
+        var currentResolved = nullScopeMap.get(current.internalName);
+        if (currentResolved != null) {
+          nullScope = currentResolved;
+          break;
+        }
+        if (chain.contains(current.internalName)) {
+          throw new IllegalStateException("cycle in the enclosing classes of " + classData.internalName + " " + chain);
+        }
+        chain.add(current.internalName);
+        if (current.nullScope != null) {
+          nullScope = Optional.of(current.nullScope);
+          break;
+        }
+        var outer = current.outer;
+        if (outer == null) {
+          nullScope = Optional.empty();
+          break;
+        }
+        var classDataOuter = classDataMap.get(outer.owner);
+        if (classDataOuter == null) {
+          throw new IllegalStateException("no class data for " + outer.owner);
+        }
+        if (outer.name != null) {
+          var methods = classDataOuter.methods;
+          var index = methods.indexOf(outer.name, outer.descriptor);
+          if (index == -1) {
+            throw new IllegalStateException("no method data for " + outer.owner + "." + outer.name + outer.descriptor);
+          }
+          var methodOuterScope = methods.nullScope(index);
+          if (methodOuterScope != null) {
+            nullScope = Optional.of(methodOuterScope);
+            break;
+          }
+        }
+        current = classDataOuter;
+      }
+      for(var internalName: chain) {
+        nullScopeMap.putIfAbsent(internalName, nullScope);
+      }
+      return nullScope.orElse(null);
+    }
+
     void dump() {
+      if (!Log.isEnabled(Log.Level.TRACE)) {
+        return;
+      }
       for(var classDataEntry: classDataMap.entrySet()) {
         var typeName = classDataEntry.getKey();
         var classData = classDataEntry.getValue();
-        System.out.println("type " + classData.typeKind + " " + typeName);
-        for(var fieldEntry: classData.fieldDataMap.entrySet()) {
-          var fieldName = fieldEntry.getKey();
-          var fieldData= fieldEntry.getValue();
-          System.out.println(" field " + fieldData.nullKind + " " + fieldName);
+        Log.trace(() -> "type " + classData.typeKind + " " + typeName);
+        var fields = classData.fields;
+        for(var i = 0; i < fields.size(); i++) {
+          var index = i;
+          Log.trace(() -> " field " + fields.nullKind(index) + " " + fields.names[index] + "." + fields.descriptors[index]);
         }
-        for(var methodEntry: classData.methodDataMap.entrySet()) {
-          var methodName = methodEntry.getKey();
-          var methodData = methodEntry.getValue();
-          System.out.println(" method " + methodName + " " + methodData.parameterMap);
+        var methods = classData.methods;
+        for(var i = 0; i < methods.size(); i++) {
+          var index = i;
+          Log.trace(() -> " method " + methods.names[index] + methods.descriptors[index] + " " + methods.parameterMap(index));
         }
       }
     }
@@ -142,7 +426,7 @@ public final class ValueRewriter {
     private final List<String> descriptors ;
 
     LoadableDescriptorsAttribute(List<String> descriptors) {
-      super("LoadableDescriptorsAttribute");
+      super("LoadableDescriptors");
       this.descriptors = descriptors;
     }
 
@@ -170,18 +454,212 @@ public final class ValueRewriter {
     }
   }
 
-  private static Analysis analyze(List<Path> classes) throws IOException {
-    var classDataMap = new HashMap<String, ClassData>();
-    for (var path : classes) {
-      try (var input = Files.newInputStream(path)) {
-        var bytecode = input.readAllBytes();
-        System.out.println("analyze " + path);
-        var classData = analyze(bytecode);
-        classDataMap.put(classData.internalName, classData);
+  private static final Set<String> IMPLICITLY_CONSTRUCTIBLE_SUPER_NAMES = Set.of("java/lang/Object", "java/lang/Record");
+
+  private static boolean canBeImplicitlyConstructible(Analysis analysis, Set<String> rewrittenSet, String internalName, HashMap<String, Boolean> inferredMap) {
+    var classData = analysis.classDataMap.get(internalName);
+    if (classData == null) {
+      return false;
+    }
+    if (classData.typeKind == TypeKind.IMPLICITLY_CONSTRUCTIBLE) {
+      return true;
+    }
+    if (!rewrittenSet.contains(internalName) || classData.referenceFields == null || (classData.access & ACC_ABSTRACT) != 0 ||
+        !IMPLICITLY_CONSTRUCTIBLE_SUPER_NAMES.contains(classData.superName)) {
+      return false;
+    }
+    var inferred = inferredMap.get(internalName);
+    if (inferred != null) {
+      return inferred;
+    }
+    inferredMap.put(internalName, false);  // a value class can not contain itself
+    var classScope = analysis.nullScope(classData);
+    for(var referenceField: classData.referenceFields) {
+      var index = referenceField.indexOf('.');
+      var fieldDescriptor = referenceField.substring(index + 1);
+      if (fieldNullKind(classData.fields, classScope, referenceField.substring(0, index), fieldDescriptor) == NullKind.NULLABLE) {
+        continue;  // null in the zero instance
+      }
+      var type = Type.getType(fieldDescriptor);
+      if (type.getSort() != Type.OBJECT || !canBeImplicitlyConstructible(analysis, rewrittenSet, type.getInternalName(), inferredMap)) {
+        return false;
       }
     }
+    inferredMap.put(internalName, true);
+    return true;
+  }
 
-    return new Analysis(classDataMap);
+  /**
+   * Returns an analysis where the value classes which zero instance is valid are implicitly constructible.
+   * The zero instance of a value class is valid if its constructors can not reject it
+   * (see {@link #analyzeConstructors(ClassReader, ClassData)}) and if each instance field with a reference type
+   * is either nullable or non-null with an implicitly constructible type, so the field of the zero instance
+   * is null or the zero instance of the field type.
+   * Only the classes that are rewritten can be promoted, the classes of the dependencies
+   * (see {@link Driver.Options#classpath()}) are not rewritten so they keep their type kind.
+   * The classes promoted are logged.
+   */
+  static Analysis inferImplicitlyConstructible(Analysis analysis, Set<String> rewrittenSet) {
+    var classDataMap = analysis.classDataMap;
+    var inferredMap = new HashMap<String, Boolean>();
+    var inferredClassDataMap = new HashMap<>(classDataMap);
+    rewrittenSet.stream().sorted().forEach(internalName -> {
+      var classData = classDataMap.get(internalName);
+      if (classData == null || classData.typeKind != TypeKind.VALUE || !canBeImplicitlyConstructible(analysis, rewrittenSet, internalName, inferredMap)) {
+        return;
+      }
+      Log.info("infer: " + internalName + " is " + TypeKind.IMPLICITLY_CONSTRUCTIBLE);
+      inferredClassDataMap.put(internalName, new ClassData(classData.access, classData.internalName, classData.superName, classData.outer,
+          TypeKind.IMPLICITLY_CONSTRUCTIBLE, classData.nullScope, classData.descriptors, classData.fields, classData.methods, classData.referenceFields));
+    });
+    return new Analysis(inferredClassDataMap, analysis.nullScopeMap);
+  }
+
+  static final Driver.Rewriter<ClassData, Analysis> REWRITER = rewriter(false);
+
+  /**
+   * Returns the rewriter.
+   * @param inferImplicitlyConstructible true if the value classes are implicitly constructible
+   *                                     when it is possible (see {@link #inferImplicitlyConstructible(Analysis, Set)}).
+   */
+  static Driver.Rewriter<ClassData, Analysis> rewriter(boolean inferImplicitlyConstructible) {
+    var symbols = new Symbols();
+    return new Driver.Rewriter<>() {
+      @Override
+      public ClassData analyze(byte[] bytecode) {
+        return ValueRewriter.analyze(bytecode, symbols);
+      }
+
+      @Override
+      public String internalName(ClassData classData) {
+        return classData.internalName;
+      }
+
+      @Override
+      public Analysis analysis(Map<String, ClassData> classDataMap) {
+        return analysis(classDataMap, classDataMap.keySet());
+      }
+
+      @Override
+      public Analysis analysis(Map<String, ClassData> classDataMap, Set<String> rewrittenSet) {
+        var analysis = new Analysis(classDataMap);
+        return inferImplicitlyConstructible ? inferImplicitlyConstructible(analysis, rewrittenSet) : analysis;
+      }
+
+      @Override
+      public Optional<byte[]> rewrite(byte[] bytecode, Analysis analysis) {
+        return ValueRewriter.rewrite(bytecode, analysis);
+      }
+
+      @Override
+      public void write(DataOutput output, ClassData classData) throws IOException {
+        writeClassData(output, classData);
+      }
+
+      @Override
+      public ClassData read(DataInput input) throws IOException {
+        return readClassData(input, symbols);
+      }
+    };
+  }
+
+  private static <E extends Enum<E>> void writeEnum(DataOutput output, E value) throws IOException {
+    output.writeByte(value == null ? -1 : value.ordinal());
+  }
+
+  private static <E extends Enum<E>> E readEnum(DataInput input, E[] values) throws IOException {
+    var ordinal = input.readByte();
+    return ordinal == -1 ? null : values[ordinal];
+  }
+
+  static void writeClassData(DataOutput output, ClassData classData) throws IOException {
+    output.writeInt(classData.access);
+    output.writeUTF(classData.internalName);
+    Driver.writeNullableUTF(output, classData.superName);
+    var outer = classData.outer;
+    output.writeBoolean(outer != null);
+    if (outer != null) {
+      Driver.writeNullableUTF(output, outer.owner);
+      Driver.writeNullableUTF(output, outer.name);
+      Driver.writeNullableUTF(output, outer.descriptor);
+    }
+    writeEnum(output, classData.typeKind);
+    writeEnum(output, classData.nullScope);
+    output.writeInt(classData.descriptors.size());
+    for(var descriptor: classData.descriptors) {
+      output.writeUTF(descriptor);
+    }
+    var fields = classData.fields;
+    output.writeInt(fields.size());
+    for(var i = 0; i < fields.size(); i++) {
+      output.writeUTF(fields.names[i] + "." + fields.descriptors[i]);
+      writeEnum(output, fields.nullKind(i));
+    }
+    var methods = classData.methods;
+    output.writeInt(methods.size());
+    for(var i = 0; i < methods.size(); i++) {
+      output.writeUTF(methods.names[i] + methods.descriptors[i]);
+      writeEnum(output, methods.nullScope(i));
+      var parameterMap = methods.parameterMap(i);
+      output.writeInt(parameterMap.size());
+      for(var parameterEntry: parameterMap.entrySet()) {
+        output.writeInt(parameterEntry.getKey());
+        writeEnum(output, parameterEntry.getValue());
+      }
+    }
+    var referenceFields = classData.referenceFields;
+    output.writeInt(referenceFields == null ? -1 : referenceFields.size());
+    if (referenceFields != null) {
+      for(var referenceField: referenceFields) {
+        output.writeUTF(referenceField);
+      }
+    }
+  }
+
+  static ClassData readClassData(DataInput input, Symbols symbols) throws IOException {
+    var access = input.readInt();
+    var internalName = symbols.symbol(input.readUTF());
+    var superName = symbols.symbol(Driver.readNullableUTF(input));
+    var outer = input.readBoolean() ?
+        new Outer(symbols.symbol(Driver.readNullableUTF(input)), symbols.symbol(Driver.readNullableUTF(input)), symbols.symbol(Driver.readNullableUTF(input))) :
+        null;
+    var typeKind = readEnum(input, TypeKind.values());
+    var nullScope = readEnum(input, NullScope.values());
+    var descriptorCount = input.readInt();
+    var descriptors = new HashSet<String>();
+    for(var i = 0; i < descriptorCount; i++) {
+      descriptors.add(input.readUTF());
+    }
+    var fieldCount = input.readInt();
+    var fieldsBuilder = new MembersBuilder(symbols);
+    for(var i = 0; i < fieldCount; i++) {
+      var mangledName = input.readUTF();
+      var index = mangledName.indexOf('.');
+      fieldsBuilder.add(mangledName.substring(0, index), mangledName.substring(index + 1), readEnum(input, NullKind.values()).ordinal(), Map.of());
+    }
+    var methodCount = input.readInt();
+    var methodsBuilder = new MembersBuilder(symbols);
+    for(var i = 0; i < methodCount; i++) {
+      var mangledName = input.readUTF();
+      var index = mangledName.indexOf('(');
+      var methodNullScope = readEnum(input, NullScope.values());
+      var parameterCount = input.readInt();
+      var parameterMap = new HashMap<Integer, NullKind>();
+      for(var j = 0; j < parameterCount; j++) {
+        parameterMap.put(input.readInt(), readEnum(input, NullKind.values()));
+      }
+      methodsBuilder.add(mangledName.substring(0, index), mangledName.substring(index), methodNullScope == null ? -1 : methodNullScope.ordinal(), parameterMap);
+    }
+    var referenceFieldCount = input.readInt();
+    List<String> referenceFields = null;
+    if (referenceFieldCount != -1) {
+      var referenceFieldList = new ArrayList<String>();
+      for(var i = 0; i < referenceFieldCount; i++) {
+        referenceFieldList.add(symbols.symbol(input.readUTF()));
+      }
+      referenceFields = List.copyOf(referenceFieldList);
+    }
+    return new ClassData(access, internalName, superName, outer, typeKind, nullScope, descriptorList(descriptors, symbols), fieldsBuilder.build(), methodsBuilder.build(), referenceFields);
   }
 
   private static Optional<NullKind> nullKind(String descriptor) {
@@ -194,9 +672,68 @@ public final class ValueRewriter {
     return Optional.empty();
   }
 
-  private static ClassData analyze(byte[] buffer) {
-    var fieldDataMap = new HashMap<String, FieldData>();
-    var methodDataMap = new HashMap<String, MethodData>();
+  private static ClassData analyze(byte[] buffer, Symbols symbols) {
+    var reader = new ClassReader(buffer);
+    var box = new Object() { ClassData classData; };
+    reader.accept(analyzer(symbols, classData -> box.classData = classData), ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+    return analyzeConstructors(reader, box.classData);
+  }
+
+  /**
+   * Reads the code of the constructors of a value class and returns the class data without reference fields
+   * if a constructor can reject the zero instance, i.e. if a constructor throws an exception or calls a method
+   * which is not a constructor. The analyzer does not read the code, so this is done separately,
+   * only for the value classes.
+   */
+  static ClassData analyzeConstructors(ClassReader reader, ClassData classData) {
+    if (classData.referenceFields == null) {
+      return classData;
+    }
+    var box = new Object() { boolean rejectZero; };
+    reader.accept(new ClassVisitor(ASM9) {
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        if (!name.equals("<init>")) {
+          return null;
+        }
+        return new MethodVisitor(ASM9) {
+          @Override
+          public void visitInsn(int opcode) {
+            if (opcode == ATHROW) {
+              box.rejectZero = true;
+            }
+          }
+
+          @Override
+          public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (!name.equals("<init>")) {
+              box.rejectZero = true;
+            }
+          }
+
+          @Override
+          public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+            box.rejectZero = true;
+          }
+        };
+      }
+    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    if (!box.rejectZero) {
+      return classData;
+    }
+    Log.debug(() -> "  analyze constructors of " + classData.internalName + " may reject the zero instance");
+    return new ClassData(classData.access, classData.internalName, classData.superName, classData.outer, classData.typeKind, classData.nullScope, classData.descriptors, classData.fields, classData.methods, null);
+  }
+
+  /**
+   * Returns a class visitor that analyzes a class and sends the class data to the consumer at the end of the class.
+   * The analysis does not need the code of the methods.
+   */
+  static ClassVisitor analyzer(Symbols symbols, Consumer<ClassData> consumer) {
+    var descriptors = new HashSet<String>();
+    var fieldsBuilder = new MembersBuilder(symbols);
+    var methodsBuilder = new MembersBuilder(symbols);
+    var referenceFields = new ArrayList<String>();
 
     var cv = new ClassVisitor(ASM9) {
       private int access;
@@ -209,20 +746,20 @@ public final class ValueRewriter {
       @Override
       public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         this.access = access;
-        internalName = name;
-        this.superName = superName;
+        internalName = symbols.symbol(name);
+        this.superName = symbols.symbol(superName);
         typeKind = TypeKind.IDENTITY;
       }
 
       @Override
       public void visitOuterClass(String owner, String name, String descriptor) {
-        outer = new Outer(owner, name, descriptor);
+        outer = new Outer(symbols.symbol(owner), symbols.symbol(name), symbols.symbol(descriptor));
       }
 
       @Override
       public void visitInnerClass(String name, String outerName, String innerName, int access) {
         if (outer == null && name.equals(internalName)) {
-          outer = new Outer(outerName, null, null);
+          outer = new Outer(symbols.symbol(outerName), null, null);
         }
       }
 
@@ -251,11 +788,15 @@ public final class ValueRewriter {
 
       @Override
       public FieldVisitor visitField(int access, String fieldName, String fieldDescriptor, String signature, Object value) {
+        var typeSort = Type.getType(fieldDescriptor).getSort();
+        if ((access & ACC_STATIC) == 0 && (typeSort == Type.OBJECT || typeSort == Type.ARRAY)) {
+          referenceFields.add(symbols.symbol(fieldName + "." + fieldDescriptor));
+        }
         return new FieldVisitor(ASM9) {
           @Override
           public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
             // System.out.println("field.visitTypeAnnotation: descriptor = " + descriptor);
-            nullKind(descriptor).ifPresent(nullKind -> fieldDataMap.put(mangleField(fieldName, fieldDescriptor), new FieldData(nullKind)));
+            nullKind(descriptor).ifPresent(nullKind -> fieldsBuilder.add(fieldName, fieldDescriptor, nullKind.ordinal(), Map.of()));
             return null;
           }
         };
@@ -263,8 +804,8 @@ public final class ValueRewriter {
 
       @Override
       public MethodVisitor visitMethod(int access, String methodName, String methodDescriptor, String signature, String[] exceptions) {
-        var parameterMap = new HashMap<Integer, NullKind>();
         return new MethodVisitor(ASM9) {
+          private Map<Integer, NullKind> parameterMap = Map.of();
           private NullScope nullScope;
           private int parameterDelta; // number of synthetic parameters at the beginning of the method
 
@@ -295,23 +836,87 @@ public final class ValueRewriter {
               }
             }
             //System.out.println("parameter = " + parameter + ", descriptor = " + descriptor);
-            nullKind(descriptor).ifPresent(nullKind -> parameterMap.put(parameter, nullKind));
+            nullKind(descriptor).ifPresent(nullKind -> {
+              if (parameterMap.isEmpty()) {
+                parameterMap = new HashMap<>();
+              }
+              parameterMap.put(parameter, nullKind);
+            });
             return null;
           }
 
           @Override
           public void visitEnd() {
-            methodDataMap.put(mangleMethod(methodName, methodDescriptor), new MethodData(nullScope, parameterMap));
+            methodsBuilder.add(methodName, methodDescriptor, nullScope == null ? -1 : nullScope.ordinal(), parameterMap);
           }
         };
       }
+
+      @Override
+      public void visitEnd() {
+        consumer.accept(new ClassData(access, internalName, superName, outer, typeKind, nullScope, descriptorList(descriptors, symbols), fieldsBuilder.build(), methodsBuilder.build(),
+            typeKind == TypeKind.VALUE ? List.copyOf(referenceFields) : null));
+      }
     };
+    return dependencyCollectorAdapter(descriptors, cv);
+  }
 
-    var reader = new ClassReader(buffer);
-    var descriptors = new HashSet<String>();
-    var dependencyVisitor = dependencyCollectorAdapter(descriptors, cv);
-    reader.accept(dependencyVisitor,0);
-    return new ClassData(cv.access, cv.internalName, cv.superName, cv.outer, cv.typeKind, cv.nullScope, descriptors, fieldDataMap, methodDataMap);
+  /**
+   * Returns the class data of a class once the methods selected by the predicate take a supplementary
+   * Object parameter at the end and are called by a method with the former descriptor,
+   * i.e. once rewritten by the {@link ParametricRewriter}.
+   * The annotations stay on the method with the new descriptor.
+   */
+  static ClassData appendObjectParameter(ClassData classData, BiPredicate<String, String> methodPredicate, Symbols symbols) {
+    var methods = classData.methods;
+    var methodsBuilder = new MembersBuilder(symbols);
+    var changed = false;
+    for(var i = 0; i < methods.size(); i++) {
+      var methodName = methods.names[i];
+      var methodDescriptor = methods.descriptors[i];
+      if (!methodPredicate.test(methodName, methodDescriptor)) {
+        methodsBuilder.add(methodName, methodDescriptor, methods.kinds[i], methods.parameterMap(i));
+        continue;
+      }
+      changed = true;
+      var desc = MethodTypeDesc.ofDescriptor(methodDescriptor);
+      desc = desc.insertParameterTypes(desc.parameterCount(), CD_Object);
+      methodsBuilder.add(methodName, desc.descriptorString(), methods.kinds[i], methods.parameterMap(i));
+      methodsBuilder.add(methodName, methodDescriptor, -1, Map.of());
+    }
+    if (!changed) {
+      return classData;
+    }
+    var descriptors = new HashSet<>(classData.descriptors);
+    descriptors.add(CD_Object.descriptorString());
+    return new ClassData(classData.access, classData.internalName, classData.superName, classData.outer, classData.typeKind, classData.nullScope, descriptorList(descriptors, symbols), classData.fields, methodsBuilder.build(), classData.referenceFields);
+  }
+
+  /**
+   * Returns the class data with the fields retyped by the ParametricRewriter with the class of their restriction
+   * (see {@link ParametricRewriter#specializedFields(ParametricRewriter.ClassData)}), the new descriptors indexed
+   * by the name and the old descriptor of the fields separated by a dot.
+   * A restriction to an implicitly constructible class rejects null so the field is non-null and can be flattened,
+   * otherwise the field is nullable because it is initialized with null.
+   */
+  static ClassData specializeFields(ClassData classData, Map<String, String> specializedFields, Map<String, ClassData> classDataMap, Symbols symbols) {
+    var fields = classData.fields;
+    var fieldsBuilder = new MembersBuilder(symbols);
+    for(var i = 0; i < fields.size(); i++) {
+      if (!specializedFields.containsKey(fields.names[i] + "." + fields.descriptors[i])) {
+        fieldsBuilder.add(fields.names[i], fields.descriptors[i], fields.kinds[i], Map.of());
+      }
+    }
+    var descriptors = new HashSet<>(classData.descriptors);
+    for(var specializedField: specializedFields.entrySet()) {
+      var fieldName = specializedField.getKey().substring(0, specializedField.getKey().indexOf('.'));
+      var fieldDescriptor = specializedField.getValue();
+      var typeKind = Optional.ofNullable(classDataMap.get(Type.getType(fieldDescriptor).getInternalName())).map(ClassData::typeKind).orElse(TypeKind.IDENTITY);
+      var nullKind = typeKind.isImplicitlyConstructible() ? NullKind.NONNULL : NullKind.NULLABLE;
+      fieldsBuilder.add(fieldName, fieldDescriptor, nullKind.ordinal(), Map.of());
+      descriptors.add(fieldDescriptor);
+    }
+    return new ClassData(classData.access, classData.internalName, classData.superName, classData.outer, classData.typeKind, classData.nullScope, descriptorList(descriptors, symbols), fieldsBuilder.build(), classData.methods, classData.referenceFields);
   }
 
   private static Optional<String> loadableDescriptor(Type type) {
@@ -343,20 +948,6 @@ public final class ValueRewriter {
     };
   }
 
-  private static void rewrite(List<Path> classes, Analysis analysis) throws IOException {
-    for(var path: classes) {
-      try(var input = Files.newInputStream(path)) {
-        System.out.println("rewrite " + path);
-        var data = rewrite(input.readAllBytes(), analysis);
-        if (data.isPresent()) {
-          Files.write(path, data.orElseThrow());
-        } else {
-          System.out.println("  skip rewrite " + path);
-        }
-      }
-    }
-  }
-
   private static NullScope composeScope(NullScope parent, NullScope scope) {
     return switch (scope) {
       case null -> parent;
@@ -372,41 +963,25 @@ public final class ValueRewriter {
     };
   }
 
-  private static NullScope resolveNullScope(Map<String, ClassData> classDataMap, ClassData classData) {
-    var classScope = classData.nullScope;
-    if (classScope != null) {
-      return classScope;
-    }
-    var outer = classData.outer;
-    if (outer == null) {
-      return null;
-    }
-    var classDataOuter = classDataMap.get(outer.owner);
-    if (classDataOuter == null) {
-      throw new IllegalStateException("no class data for " + outer.owner);
-    }
-    if (outer.name != null) {
-      var methodData = classDataOuter.methodDataMap.get(mangleMethod(outer.name, outer.descriptor));
-      if (methodData == null) {
-        throw new IllegalStateException("no method data for " + outer.owner + "." + outer.name + outer.descriptor);
-      }
-      var methodOuterScope = methodData.nullScope;
-      if (methodOuterScope != null) {
-        return methodOuterScope;
-      }
-    }
-    // TODO remove recursivity
-    return resolveNullScope(classDataMap, classDataOuter);
-  }
-
-  private static NullKind fieldNullKind(Map<String, FieldData> fieldDataMap, NullScope classScope, String fieldName, String fieldDescriptor) {
-    return Optional.ofNullable(fieldDataMap.get(mangleField(fieldName, fieldDescriptor)))
-        .map(FieldData::nullKind)
-        .orElseGet(() -> toNullKind(classScope));
+  private static NullKind fieldNullKind(Members fields, NullScope classScope, String fieldName, String fieldDescriptor) {
+    var index = fields.indexOf(fieldName, fieldDescriptor);
+    return index == -1 ? toNullKind(classScope) : fields.nullKind(index);
   }
 
   private static Optional<byte[]> rewrite(byte[] buffer, Analysis analysis) {
     var reader = new ClassReader(buffer);
+    var writer = new ClassWriter(reader, 0);
+    return rewriter(reader, analysis, writer).map(cv -> {
+      reader.accept(cv, 0);
+      return writer.toByteArray();
+    });
+  }
+
+  /**
+   * Returns a class visitor that rewrites the class read by the reader and sends the rewritten class to
+   * the class visitor {@code classVisitor} or an empty optional if the class should not be rewritten.
+   */
+  static Optional<ClassVisitor> rewriter(ClassReader reader, Analysis analysis, ClassVisitor classVisitor) {
     var classDataMap = analysis.classDataMap;
     var classData = classDataMap.get(reader.getClassName());
     if (classData == null) {  // analysis is not available
@@ -415,21 +990,23 @@ public final class ValueRewriter {
     if ((classData.access & ACC_ABSTRACT) != 0) {  // do not rewrite abstract class or interface
       return Optional.empty();
     }
-    var classScope = resolveNullScope(classDataMap, classData);
-    var descriptors = classData.descriptors;
-    var fieldDataMap = classData.fieldDataMap;
-    var methodDataMap = classData.methodDataMap;
-
-    var writer = new ClassWriter(reader, 0);
-    reader.accept(
-        new ClassVisitor(ASM9, writer) {
+    var classScope = analysis.nullScope(classData);
+    var descriptors = loadableDescriptors(reader, classData.descriptors);
+    var fields = classData.fields;
+    var methods = classData.methods;
+    var hasCheckedFields = referencesFieldNeedingNullCheck(reader, analysis);
+    var provenParameterSlotsMap = provenParameterSlotsMap(reader, classData.internalName, classScope, methods);
+    var hasImplicitlyConstructibleClasses = referencesImplicitlyConstructibleClass(reader, classDataMap);
+
+    return Optional.of(
+        new ClassVisitor(ASM9, classVisitor) {
           @Override
           public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
             var kind = classData.typeKind;
             var classVersion = kind.isIdentity() ? version : (V23 | Opcodes.V_PREVIEW);
             var classAccess = kind.isIdentity() ? (access | ACC_IDENTITY) : (access | ACC_FINAL) & ~ACC_IDENTITY;
             if (classVersion != version || classAccess != access) {
-              System.out.println("  rewrite class " + name + " " + kind + " " + version + " " + classAccess);
+              Log.debug(() -> "  rewrite class " + name + " " + kind + " " + version + " " + classAccess);
             }
             super.visit(classVersion, classAccess, name, signature, superName, interfaces);
 
@@ -450,10 +1027,10 @@ public final class ValueRewriter {
             var type = Type.getType(fieldDescriptor);
             var typeSort = type.getSort();
             if (typeSort == Type.OBJECT /* || typeSort == Type.ARRAY*/) {
-              var nullKind = fieldNullKind(fieldDataMap, classScope, fieldName, fieldDescriptor);
+              var nullKind = fieldNullKind(fields, classScope, fieldName, fieldDescriptor);
               var typeKind = Optional.ofNullable(classDataMap.get(type.getInternalName())).map(ClassData::typeKind).orElse(TypeKind.IDENTITY);
               if (nullKind == NullKind.NONNULL && typeKind == TypeKind.IMPLICITLY_CONSTRUCTIBLE) {
-                System.out.println("  rewrite field " + fieldName + "." + fieldDescriptor + " " + nullKind + " " + typeKind);
+                Log.debug(() -> "  rewrite field " + fieldName + "." + fieldDescriptor + " " + nullKind + " " + typeKind);
                 var av = fv.visitAnnotation(JDK_NULL_RESTRICTED_DESCRIPTOR, true);
                 av.visitEnd();
               }
@@ -467,23 +1044,42 @@ public final class ValueRewriter {
           @Override
           public MethodVisitor visitMethod(int access, String methodName, String methodDescriptor, String signature, String[] exceptions) {
             var mv = super.visitMethod(access, methodName, methodDescriptor, signature, exceptions);
+            if (mv == null) {
+              return null;
+            }
             var kind = classData.typeKind;
             if (!kind.isIdentity() && ALLOWED_SUPER_NAMES.contains(classData.superName)) {
               // move super calls in the constructor
               mv = moveSuperCallToTheEnd(mv, classData.superName);
             }
-            var methodData = methodDataMap.get(mangleMethod(methodName, methodDescriptor));
-            if (methodData != null && Type.getArgumentTypes(methodDescriptor).length != 0) {
-              Map<Integer, NullKind> parameterMap = methodData.parameterMap;
-              var nullScope = composeScope(classScope, methodData.nullScope);
-              if (nullScope != null || !parameterMap.isEmpty()) {
-                System.out.println("  rewrite method " + methodName + "." + methodDescriptor + " " + parameterMap + " " + nullScope);
+            var index = methods.indexOf(methodName, methodDescriptor);
+            if (hasImplicitlyConstructibleClasses) {
+              // replace the creation of arrays of non-null implicitly constructible value types
+              var methodScope = index == -1 ? classScope : composeScope(classScope, methods.nullScope(index));
+              mv = newArrayAdapter(classDataMap, classData.internalName, methodScope, access, methodName, methodDescriptor, mv);
+            }
+            var nonNullParameterSlots = new BitSet();
+            if (index != -1 && Type.getArgumentTypes(methodDescriptor).length != 0) {
+              var nullScope = composeScope(classScope, methods.nullScope(index));
+              if (nullScope != null || methods.hasParameters(index)) {
+                Log.debug(() -> "  rewrite method " + methodName + "." + methodDescriptor + " " + methods.parameterMap(index) + " " + nullScope);
+                nonNullParameterSlots = nonNullParameterSlots(nullScope, access, methodDescriptor, methods, index);
+                // no need to check the parameters that are non-null at all the call sites
+                var checkedSlots = nonNullParameterSlots;
+                var provenSlots = provenParameterSlotsMap.get(methodName + methodDescriptor);
+                if (provenSlots != null) {
+                  Log.debug(() -> "  rewrite method " + methodName + "." + methodDescriptor + " slots " + provenSlots + " are non-null at all the call sites");
+                  checkedSlots = (BitSet) nonNullParameterSlots.clone();
+                  checkedSlots.andNot(provenSlots);
+                }
                 // add requireNonNull when needed
-                mv = preconditionsAdapter(nullScope, access, methodDescriptor, parameterMap, mv);
+                mv = preconditionsAdapter(checkedSlots, mv);
               }
             }
-            // intercept putfield, adds a nullcheck
-            mv = fieldPutAdapter(classDataMap, mv);
+            if (hasCheckedFields) {
+              // intercept putfield, adds a nullcheck if the value is not known to be non-null
+              mv = fieldPutAdapter(analysis, classData.internalName, access, methodName, methodDescriptor, nonNullParameterSlots, mv);
+            }
             return mv;
           }
 
@@ -499,18 +1095,20 @@ public final class ValueRewriter {
 
           @Override
           public void visitEnd() {
+            // the attribute contains field descriptors
             var valueDescriptors = descriptors.stream()
-                .map(descriptor -> Type.getType(descriptor).getInternalName())
-                .filter(internalName -> !internalName.equals(classData.internalName))
-                .filter(internalName -> Optional.ofNullable(classDataMap.get(internalName)).map(ClassData::typeKind).orElse(TypeKind.IDENTITY) != TypeKind.IDENTITY)
+                .filter(descriptor -> {
+                  var internalName = Type.getType(descriptor).getInternalName();
+                  return !internalName.equals(classData.internalName) &&
+                      Optional.ofNullable(classDataMap.get(internalName)).map(ClassData::typeKind).orElse(TypeKind.IDENTITY) != TypeKind.IDENTITY;
+                })
                 .toList();
             if (!valueDescriptors.isEmpty()) {
               super.visitAttribute(new LoadableDescriptorsAttribute(valueDescriptors));
             }
+            super.visitEnd();
           }
-        }, 0);
-
-    return Optional.of(writer.toByteArray());
+        });
   }
 
   private static MethodVisitor moveSuperCallToTheEnd(MethodVisitor mv, String superName) {
@@ -536,71 +1134,502 @@ public final class ValueRewriter {
     };
   }
 
-  private static MethodVisitor fieldPutAdapter(Map<String, ClassData> classDataMap, MethodVisitor mv) {
-    return new MethodVisitor(ASM9, mv) {
+  private static final int CONSTANT_CLASS_TAG = 7;
+  private static final int CONSTANT_FIELDREF_TAG = 9;
+  private static final int CONSTANT_NAME_AND_TYPE_TAG = 12;
+  private static final int CONSTANT_METHOD_TYPE_TAG = 16;
+
+  private static void addLoadableDescriptors(String descriptor, Set<String> descriptors) {
+    if (descriptor.charAt(0) != '(') {
+      loadableDescriptor(Type.getType(descriptor)).ifPresent(descriptors::add);
+      return;
+    }
+    loadableDescriptor(Type.getReturnType(descriptor)).ifPresent(descriptors::add);
+    for(var parameterType: Type.getArgumentTypes(descriptor)) {
+      loadableDescriptor(parameterType).ifPresent(descriptors::add);
+    }
+  }
+
+  /**
+   * Returns the sorted loadable descriptors of the fields and the methods of the class (found by the analysis)
+   * and of the types used by the code, i.e. the classes, the descriptors of the fields and the methods
+   * accessed (also by invokedynamic and constant dynamic) and the method types of the constant pool.
+   */
+  private static List<String> loadableDescriptors(ClassReader reader, List<String> descriptors) {
+    var descriptorSet = new TreeSet<>(descriptors);
+    var charBuffer = new char[reader.getMaxStringLength()];
+    for(var i = 1; i < reader.getItemCount(); i++) {
+      var offset = reader.getItem(i);
+      if (offset == 0) {  // second slot of a long or a double
+        continue;
+      }
+      switch (reader.readByte(offset - 1)) {
+        case CONSTANT_CLASS_TAG -> loadableDescriptor(Type.getObjectType(reader.readUTF8(offset, charBuffer))).ifPresent(descriptorSet::add);
+        case CONSTANT_NAME_AND_TYPE_TAG -> addLoadableDescriptors(reader.readUTF8(offset + 2, charBuffer), descriptorSet);
+        case CONSTANT_METHOD_TYPE_TAG -> addLoadableDescriptors(reader.readUTF8(offset, charBuffer), descriptorSet);
+        default -> {}
+      }
+    }
+    return descriptorSet.size() == descriptors.size() ? descriptors : List.copyOf(descriptorSet);
+  }
+
+  /**
+   * Returns true if the constant pool of the class references a field that needs a null check when stored,
+   * if it's not the case, the methods do not have to be buffered and analyzed.
+   */
+  private static boolean referencesFieldNeedingNullCheck(ClassReader reader, Analysis analysis) {
+    var charBuffer = new char[reader.getMaxStringLength()];
+    for(var i = 1; i < reader.getItemCount(); i++) {
+      var offset = reader.getItem(i);  // offset of the constant + 1, 0 for the second slot of a long or a double
+      if (offset == 0 || reader.readByte(offset - 1) != CONSTANT_FIELDREF_TAG) {
+        continue;
+      }
+      var owner = reader.readClass(offset, charBuffer);
+      var nameAndTypeOffset = reader.getItem(reader.readUnsignedShort(offset + 2));
+      var name = reader.readUTF8(nameAndTypeOffset, charBuffer);
+      var descriptor = reader.readUTF8(nameAndTypeOffset + 2, charBuffer);
+      if (putfieldNeedsNullCheck(analysis, owner, name, descriptor)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if a value stored in the field need to be checked,
+   * i.e. if the field is non-null and its type is not implicitly constructible.
+   */
+  private static boolean putfieldNeedsNullCheck(Analysis analysis, String owner, String name, String descriptor) {
+    var type = Type.getType(descriptor);
+    var typeSort = type.getSort();
+    if (typeSort != Type.OBJECT && typeSort != Type.ARRAY) {
+      return false;
+    }
+    var classDataMap = analysis.classDataMap;
+    var ownerClassData = classDataMap.get(owner);
+    if (ownerClassData == null) { // do we have analysis information from the owner class ?
+      return false;
+    }
+    Log.trace(() -> "  rewrite putfield nullScope " + owner + " " + ownerClassData.outer);
+
+    var classScope = analysis.nullScope(ownerClassData);
+    var fields = ownerClassData.fields;
+
+    Log.trace(() -> "  rewrite putfield " + owner + "." + name + " " + descriptor + " " + classScope + " " + fields);
+
+    var nullKind = fieldNullKind(fields, classScope, name, descriptor);
+    if (nullKind != NullKind.NONNULL) {
+      return false;
+    }
+    var typeClassData = classDataMap.get(type.getInternalName());
+    // if the type is implicitly constructible, the VM will do a nullcheck at runtime
+    return typeClassData == null || typeClassData.typeKind != TypeKind.IMPLICITLY_CONSTRUCTIBLE;
+  }
+
+  /**
+   * Buffers the method, and adds a nullcheck before each putfield that stores into a non-null field
+   * a value that is not known to be non-null by the {@link NullnessInterpreter}.
+   */
+  private static MethodVisitor fieldPutAdapter(Analysis analysis, String internalName, int access, String methodName, String methodDescriptor,
+                                               BitSet nonNullParameterSlots, MethodVisitor delegate) {
+    return new MethodNode(ASM9, access, methodName, methodDescriptor, null, null) {
       @Override
-      public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
-        if (opcode == Opcodes.PUTFIELD) {
-          var type = Type.getType(descriptor);
-          var typeSort = type.getSort();
-          if (typeSort == Type.OBJECT || typeSort == Type.ARRAY) {
-            var ownerClassData = classDataMap.get(owner);
-            if (ownerClassData != null) { // do we have analysis information from the owner class ?
-              System.out.println("  rewrite putfield DEBUG resolveNullScope " + owner + " " + ownerClassData.outer);
-
-              var classScope = resolveNullScope(classDataMap, ownerClassData);
-              var fieldDataMap = ownerClassData.fieldDataMap;
-
-              System.out.println("  rewrite putfield DEBUG2 " + owner + "." + name + " " + descriptor + " " + classScope + " " + fieldDataMap);
-
-              var nullKind = fieldNullKind(fieldDataMap, classScope, name, descriptor);
-              if (nullKind == NullKind.NONNULL) {
-                var typeClassData = classDataMap.get(type.getInternalName());
-                if (typeClassData != null && typeClassData.typeKind == TypeKind.IMPLICITLY_CONSTRUCTIBLE) {
-                  // do nothing, the VM will do a nullcheck at runtime
-                } else {
-                  System.out.println("  rewrite putfield " + owner + "." + name + " " + descriptor + " " + nullKind);
-                  super.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "requireNonNull",
-                      "(Ljava/lang/Object;)Ljava/lang/Object;", false);
-                  if (!descriptor.equals("Ljava/lang/Object;")) {
-                    super.visitTypeInsn(CHECKCAST, type.getInternalName());
-                  }
-                }
+      public void visitEnd() {
+        var fieldInsns = new ArrayList<FieldInsnNode>();
+        for(var insn: instructions) {
+          if (insn instanceof FieldInsnNode fieldInsn && fieldInsn.getOpcode() == Opcodes.PUTFIELD &&
+              putfieldNeedsNullCheck(analysis, fieldInsn.owner, fieldInsn.name, fieldInsn.desc)) {
+            fieldInsns.add(fieldInsn);
+          }
+        }
+        if (!fieldInsns.isEmpty()) {
+          var frames = NullnessInterpreter.analyze(internalName, this, nonNullParameterSlots);
+          if (frames != null) {  // the frames are indexed by the instructions before the insertions
+            fieldInsns.removeIf(fieldInsn -> {
+              if (!NullnessInterpreter.isTopNonNull(frames[instructions.indexOf(fieldInsn)])) {
+                return false;
               }
+              Log.debug(() -> "  rewrite putfield " + fieldInsn.owner + "." + fieldInsn.name + " " + fieldInsn.desc + " value is non-null");
+              return true;
+            });
+          }
+          for(var fieldInsn: fieldInsns) {
+            Log.debug(() -> "  rewrite putfield " + fieldInsn.owner + "." + fieldInsn.name + " " + fieldInsn.desc + " " + NullKind.NONNULL);
+            instructions.insertBefore(fieldInsn, new MethodInsnNode(INVOKESTATIC, "java/util/Objects", "requireNonNull",
+                "(Ljava/lang/Object;)Ljava/lang/Object;", false));
+            if (!fieldInsn.desc.equals("Ljava/lang/Object;")) {
+              instructions.insertBefore(fieldInsn, new TypeInsnNode(CHECKCAST, Type.getType(fieldInsn.desc).getInternalName()));
             }
           }
         }
-        super.visitFieldInsn(opcode, owner, name, descriptor);
+        accept(delegate);
       }
     };
   }
 
-  private static MethodVisitor preconditionsAdapter(NullScope methodNullScope, int access, String methodDescriptor, Map<Integer, NullKind> parameterMap, MethodVisitor mv) {
-    return new MethodVisitor(ASM9,  mv) {
-      private int maxLocals = -1;
+  /**
+   * Returns true if the constant pool of the class references an implicitly constructible class,
+   * if it's not the case, no array creation needs to be rewritten.
+   */
+  private static boolean referencesImplicitlyConstructibleClass(ClassReader reader, Map<String, ClassData> classDataMap) {
+    var charBuffer = new char[reader.getMaxStringLength()];
+    for(var i = 1; i < reader.getItemCount(); i++) {
+      var offset = reader.getItem(i);  // offset of the constant + 1, 0 for the second slot of a long or a double
+      if (offset == 0 || reader.readByte(offset - 1) != CONSTANT_CLASS_TAG) {
+        continue;
+      }
+      var classData = classDataMap.get(reader.readUTF8(offset, charBuffer));
+      if (classData != null && classData.typeKind == TypeKind.IMPLICITLY_CONSTRUCTIBLE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the type path is the component type of an array,
+   * followed by the steps to the innermost type of an inner class.
+   */
+  private static boolean isComponentTypePath(TypePath typePath) {
+    if (typePath == null || typePath.getLength() == 0 || typePath.getStep(0) != TypePath.ARRAY_ELEMENT) {
+      return false;
+    }
+    for(var i = 1; i < typePath.getLength(); i++) {
+      if (typePath.getStep(i) != TypePath.INNER_TYPE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the null kind of the component type of an array creation annotated on the instruction or null.
+   */
+  private static NullKind annotatedComponentNullKind(AbstractInsnNode insn) {
+    if (insn.visibleTypeAnnotations == null) {
+      return null;
+    }
+    for(var typeAnnotation: insn.visibleTypeAnnotations) {
+      if (new TypeReference(typeAnnotation.typeRef).getSort() == TypeReference.NEW && isComponentTypePath(typeAnnotation.typePath)) {
+        var nullKind = nullKind(typeAnnotation.desc);
+        if (nullKind.isPresent()) {
+          return nullKind.orElseThrow();
+        }
+      }
+    }
+    return null;
+  }
+
+  private record PendingAnnotation(NullKind nullKind, int height, ArrayList<AbstractInsnNode> creations) {}
+
+  /**
+   * Returns the null kind of the component of the arrays created by the method with an annotated component,
+   * indexed by the array creation instruction, or null if the stack of the method can not be analyzed.
+   *
+   * javac attaches the annotation of an array creation to the first instruction of the length,
+   * so an annotation is matched with the array creation which length is at the height of the stack
+   * before the annotated instruction, whatever the branches in between.
+   * An array creation nested in the length ({@code new Foo[new Bar[n].length]}) starts at the same instruction,
+   * so the annotations of the same height are matched last in, first out, the innermost creation first,
+   * and the last array creation of an annotation takes it. An annotation ends when the stack goes back
+   * to its height after an array creation, i.e. when the array is consumed.
+   */
+  private static Map<AbstractInsnNode, NullKind> annotatedArrayCreations(String owner, MethodNode method) {
+    var instructions = method.instructions;
+    if (Arrays.stream(instructions.toArray()).allMatch(insn -> annotatedComponentNullKind(insn) == null)) {
+      return Map.of();
+    }
+    Frame<BasicValue>[] frames;
+    try {
+      frames = new Analyzer<>(new BasicInterpreter()).analyze(owner, method);
+    } catch (AnalyzerException e) {
+      Log.debug(() -> "  stack analysis of " + owner + "." + method.name + method.desc + " failed " + e.getMessage());
+      return null;
+    }
+    var annotatedMap = new HashMap<AbstractInsnNode, NullKind>();
+    var pendings = new ArrayDeque<PendingAnnotation>();
+    for(var i = 0; i < instructions.size(); i++) {
+      var frame = frames[i];
+      if (frame == null) {  // dead code
+        continue;
+      }
+      var insn = instructions.get(i);
+      var height = frame.getStackSize();
+      while (!pendings.isEmpty() &&
+          (pendings.peek().height > height || (pendings.peek().height == height && !pendings.peek().creations.isEmpty()))) {
+        endAnnotation(pendings.pop(), annotatedMap);
+      }
+      var nullKind = annotatedComponentNullKind(insn);
+      if (nullKind != null) {
+        pendings.push(new PendingAnnotation(nullKind, height, new ArrayList<>()));
+      }
+      var dimensions = switch (insn.getOpcode()) {
+        case ANEWARRAY, NEWARRAY -> 1;
+        case MULTIANEWARRAY -> ((MultiANewArrayInsnNode) insn).dims;
+        default -> 0;
+      };
+      if (dimensions != 0) {
+        var lengthHeight = height - dimensions;
+        PendingAnnotation pending = null;
+        for(var candidate: pendings) {  // from the innermost
+          if (candidate.height == lengthHeight) {
+            if (candidate.creations.isEmpty()) {
+              pending = candidate;
+              break;
+            }
+            if (pending == null) {
+              pending = candidate;
+            }
+          }
+        }
+        if (pending != null) {
+          pending.creations.add(insn);
+        }
+      }
+    }
+    while (!pendings.isEmpty()) {
+      endAnnotation(pendings.pop(), annotatedMap);
+    }
+    return annotatedMap;
+  }
+
+  private static void endAnnotation(PendingAnnotation pending, HashMap<AbstractInsnNode, NullKind> annotatedMap) {
+    var creations = pending.creations;
+    if (!creations.isEmpty()) {
+      annotatedMap.put(creations.getLast(), pending.nullKind);
+    }
+  }
 
-      private NullKind parameterNullKind(int i) {
-        return Optional.ofNullable(parameterMap.get(i)).orElseGet(() -> toNullKind(methodNullScope));
+  /**
+   * Buffers the method, and replaces each anewarray of a non-null implicitly constructible value type
+   * by a call to {@link com.github.forax.civilizer.vrt.RT#newNullRestrictedArray(Class, int)},
+   * so the array is flattened by the VM.
+   * The type annotations of an instruction are visited after the instruction, hence the buffering.
+   * An array which component is not annotated is non-null if the method is null marked
+   * (see {@link #annotatedArrayCreations(String, MethodNode)}).
+   */
+  private static MethodVisitor newArrayAdapter(Map<String, ClassData> classDataMap, String internalName, NullScope methodScope,
+                                               int access, String methodName, String methodDescriptor, MethodVisitor delegate) {
+    return new MethodNode(ASM9, access, methodName, methodDescriptor, null, null) {
+      @Override
+      public void visitEnd() {
+        var annotatedMap = annotatedArrayCreations(internalName, this);
+        if (annotatedMap == null) {  // the annotations can not be matched, no array is rewritten
+          accept(delegate);
+          return;
+        }
+        var typeInsns = new ArrayList<TypeInsnNode>();
+        for(var insn: instructions) {
+          if (insn.getOpcode() != ANEWARRAY) {
+            continue;
+          }
+          var typeInsn = (TypeInsnNode) insn;
+          var nullKind = annotatedMap.getOrDefault(typeInsn, toNullKind(methodScope));
+          var classData = classDataMap.get(typeInsn.desc);
+          if (classData != null && classData.typeKind == TypeKind.IMPLICITLY_CONSTRUCTIBLE && nullKind == NullKind.NONNULL) {
+            typeInsns.add(typeInsn);
+          }
+        }
+        for(var typeInsn: typeInsns) {
+          Log.debug(() -> "  rewrite anewarray " + typeInsn.desc + " in " + methodName + methodDescriptor + " " + NullKind.NONNULL);
+          // length -> length, class -> class, length -> Object[] -> Component[]
+          instructions.insertBefore(typeInsn, new LdcInsnNode(Type.getObjectType(typeInsn.desc)));
+          instructions.insertBefore(typeInsn, new InsnNode(SWAP));
+          instructions.insertBefore(typeInsn, new MethodInsnNode(INVOKESTATIC, "com/github/forax/civilizer/vrt/RT", "newNullRestrictedArray",
+              "(Ljava/lang/Class;I)[Ljava/lang/Object;", false));
+          instructions.set(typeInsn, new TypeInsnNode(CHECKCAST, "[L" + typeInsn.desc + ";"));
+        }
+        if (!typeInsns.isEmpty()) {
+          maxStack++;  // the class is pushed on top of the length
+        }
+        accept(delegate);
       }
+    };
+  }
+
+  /**
+   * Returns the slots of the parameters of a method that are non-null, so checked at the start of the method.
+
+   */
+  private static BitSet nonNullParameterSlots(NullScope methodNullScope, int access, String methodDescriptor, Members methods, int methodIndex) {
+    var nonNullParameterSlots = new BitSet();
+    var types = Type.getArgumentTypes(methodDescriptor);
+    var slot = (access & ACC_STATIC) == 0 ? 1 : 0;
+    for(var i = 0; i < types.length; i++) {
+      var type = types[i];
+      var typeSort = type.getSort();
+      if (typeSort == Type.OBJECT) {
+        var parameterNullKind = Optional.ofNullable(methods.parameterNullKind(methodIndex, i)).orElseGet(() -> toNullKind(methodNullScope));
+        if (parameterNullKind == NullKind.NONNULL) {
+          nonNullParameterSlots.set(slot);
+        }
+      }
+      slot += type.getSize();
+    }
+    return nonNullParameterSlots;
+  }
+
+  /**
+   * Returns the slots of the parameters of a method that are declared non-null or an empty set.
+   */
+  private static BitSet declaredNonNullParameterSlots(NullScope classScope, Members methods, int access, String methodName, String methodDescriptor) {
+    var index = methods.indexOf(methodName, methodDescriptor);
+    if (index == -1) {
+      return new BitSet();
+    }
+    var nullScope = composeScope(classScope, methods.nullScope(index));
+    if (nullScope == null && !methods.hasParameters(index)) {
+      return new BitSet();
+    }
+    return nonNullParameterSlots(nullScope, access, methodDescriptor, methods, index);
+  }
+
+  /**
+   * Returns true if the ParametricRewriter moves the code of the method to a method with
+   * a supplementary Object parameter (see {@link #appendObjectParameter(ClassData, BiPredicate, Symbols)}).
+   */
+  private static boolean hasAppendedObjectParameter(Members methods, String methodName, String methodDescriptor) {
+    var index = methodDescriptor.indexOf(')');
+    return methods.indexOf(methodName, methodDescriptor.substring(0, index) + "Ljava/lang/Object;" + methodDescriptor.substring(index)) != -1;
+  }
+
+  /**
+   * Removes from the map the methods of the class referenced by a constant, their callers are unknown.
+   */
+  private static void removeReferencedMethods(Object constant, String internalName, Map<String, BitSet> provenSlotsMap) {
+    if (constant instanceof Handle handle) {
+      if (handle.getOwner().equals(internalName)) {
+        provenSlotsMap.remove(handle.getName() + handle.getDesc());
+      }
+      return;
+    }
+    if (constant instanceof ConstantDynamic constantDynamic) {
+      removeReferencedMethods(constantDynamic.getBootstrapMethod(), internalName, provenSlotsMap);
+      for(var i = 0; i < constantDynamic.getBootstrapMethodArgumentCount(); i++) {
+        removeReferencedMethods(constantDynamic.getBootstrapMethodArgument(i), internalName, provenSlotsMap);
+      }
+    }
+  }
+
+  /**
+   * Returns, for each private method of the class that checks its parameters, the slots of the checked parameters
+   * that are non-null at all the call sites, indexed by the name and the descriptor of the method.
+   *
+   * A private method can only be called by the methods of its class (apart from reflection),
+   * so the callers are analyzed with a {@link NullnessInterpreter}, a parameter of a caller is non-null
+   * if it is declared non-null, because it is either checked or non-null at all the call sites of the caller.
+   * A method referenced by a method handle (a lambda or a method reference) or a method never called
+   * keeps its checks. A private method of a class that is part of a nest (a class with a NestHost
+   * or a NestMembers attribute) can also be called by the other classes of the nest,
+   * so all the methods of such class keep their checks, thus the class can still be rewritten alone.
+   */
+  private static Map<String, BitSet> provenParameterSlotsMap(ClassReader reader, String internalName, NullScope classScope, Members methods) {
+    var provenSlotsMap = new HashMap<String, BitSet>();
+    reader.accept(new ClassVisitor(ASM9) {
+      private boolean nestmate;
 
       @Override
-      public void visitCode() {
-        var types = Type.getArgumentTypes(methodDescriptor);
-        var slot = (access & ACC_STATIC) == 0 ? 1 : 0;
+      public void visitNestHost(String nestHost) {
+        nestmate = true;
+      }
+
+      @Override
+      public void visitNestMember(String nestMember) {
+        nestmate = true;
+      }
+
+      @Override
+      public MethodVisitor visitMethod(int access, String methodName, String methodDescriptor, String signature, String[] exceptions) {
+        if (!nestmate && (access & ACC_PRIVATE) != 0 && !hasAppendedObjectParameter(methods, methodName, methodDescriptor)) {
+          var slots = declaredNonNullParameterSlots(classScope, methods, access, methodName, methodDescriptor);
+          if (!slots.isEmpty()) {
+            provenSlotsMap.put(methodName + methodDescriptor, slots);
+          }
+        }
+        return null;
+      }
+    }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    if (provenSlotsMap.isEmpty()) {
+      return Map.of();
+    }
+
+    var methodNodes = new ArrayList<MethodNode>();
+    reader.accept(new ClassVisitor(ASM9) {
+      @Override
+      public MethodVisitor visitMethod(int access, String methodName, String methodDescriptor, String signature, String[] exceptions) {
+        var methodNode = new MethodNode(ASM9, access, methodName, methodDescriptor, null, null);
+        methodNodes.add(methodNode);
+        return methodNode;
+      }
+    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+    var calledSet = new HashSet<String>();
+    for(var methodNode: methodNodes) {
+      var instructions = methodNode.instructions;
+      Frame<NullnessInterpreter.NullValue>[] frames = null;
+      var analyzed = false;
+      for(var insn: instructions) {
+        if (insn instanceof LdcInsnNode ldcInsn) {
+          removeReferencedMethods(ldcInsn.cst, internalName, provenSlotsMap);
+          continue;
+        }
+        if (insn instanceof InvokeDynamicInsnNode indyInsn) {
+          removeReferencedMethods(indyInsn.bsm, internalName, provenSlotsMap);
+          for(var bsmArg: indyInsn.bsmArgs) {
+            removeReferencedMethods(bsmArg, internalName, provenSlotsMap);
+          }
+          continue;
+        }
+        if (!(insn instanceof MethodInsnNode methodInsn) || !methodInsn.owner.equals(internalName)) {
+          continue;
+        }
+        var key = methodInsn.name + methodInsn.desc;
+        var provenSlots = provenSlotsMap.get(key);
+        if (provenSlots == null) {
+          continue;
+        }
+        calledSet.add(key);
+        if (!analyzed) {
+          var callerSlots = hasAppendedObjectParameter(methods, methodNode.name, methodNode.desc) ?
+              new BitSet() :  // the parameters are checked by another method
+              declaredNonNullParameterSlots(classScope, methods, methodNode.access, methodNode.name, methodNode.desc);
+          frames = NullnessInterpreter.analyze(internalName, methodNode, callerSlots);
+          analyzed = true;
+        }
+        if (frames == null) {  // analysis failure, nothing is known
+          provenSlots.clear();
+          continue;
+        }
+        var frame = frames[instructions.indexOf(methodInsn)];
+        if (frame == null) {  // dead code
+          continue;
+        }
+        var types = Type.getArgumentTypes(methodInsn.desc);
+        var slot = methodInsn.getOpcode() == INVOKESTATIC ? 0 : 1;
         for(var i = 0; i < types.length; i++) {
-          var type = types[i];
-          var typeSort = type.getSort();
-          if (typeSort == Type.OBJECT) {
-            var parameterNullKind = parameterNullKind(i);
-            if (parameterNullKind == NullKind.NONNULL) {
-              mv.visitVarInsn(ALOAD, slot);
-              mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "requireNonNull", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
-              mv.visitInsn(POP);
-
-              maxLocals = slot;
-            }
+          if (provenSlots.get(slot) && !NullnessInterpreter.isArgumentNonNull(frame, types.length, i)) {
+            provenSlots.clear(slot);
           }
-          slot += type.getSize();
+          slot += types[i].getSize();
+        }
+      }
+    }
+    provenSlotsMap.entrySet().removeIf(entry -> !calledSet.contains(entry.getKey()) || entry.getValue().isEmpty());
+    return provenSlotsMap;
+  }
+
+  private static MethodVisitor preconditionsAdapter(BitSet nonNullParameterSlots, MethodVisitor mv) {
+    return new MethodVisitor(ASM9,  mv) {
+      private int maxLocals = -1;
+
+      @Override
+      public void visitCode() {
+        for(var slot = nonNullParameterSlots.nextSetBit(0); slot != -1; slot = nonNullParameterSlots.nextSetBit(slot + 1)) {
+          mv.visitVarInsn(ALOAD, slot);
+          mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "requireNonNull", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+          mv.visitInsn(POP);
+
+          maxLocals = slot;
         }
         super.visitCode();
       }
@@ -616,24 +1645,24 @@ public final class ValueRewriter {
     };
   }
 
-  private static List<Path> classes(Path folder) throws IOException {
-    if (!Files.exists(folder)) {
-      return List.of();
-    }
-    try(var paths = Files.walk(folder)) {
-      return paths
-          .filter(p -> p.toString().endsWith(".class"))
-          .toList();
+  public static void main(String[] args) throws IOException {
+    var options = Driver.Options.parse(args);
+    var driver = new Driver<>("value", rewriter(options.inferImplicitlyConstructible()), options);
+    if (options.input() != null) {
+      try(var jar = Jar.open(options.input())) {
+        var analysis = driver.analyze(jar);
+        analysis.dump();
+        driver.rewrite(jar, options.output(), analysis);
+      }
+      return;
     }
-  }
 
-  public static void main(String[] args) throws IOException {
-    var main = classes(Path.of("target/classes"));
-    var test = classes(Path.of("target/test-classes"));
+    var main = Driver.classes(Path.of("target/classes"));
+    var test = Driver.classes(Path.of("target/test-classes"));
     var classes = Stream.concat(main.stream(), test.stream()).sorted().toList();
 
-    var analysis = analyze(classes);
+    var analysis = driver.analyze(classes);
     analysis.dump();
-    rewrite(classes, analysis);
+    driver.rewrite(classes, analysis);
   }
 }
@@ -0,0 +1,94 @@
+package com.github.forax.civilizer.prt;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.RecordComponentVisitor;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * The template of the kiddy pool classes of a raw class, the raw class stripped of everything
+ * but the constant pool accessors.
+ *
+ * The template is computed by the rewriter and stored in the raw class as a string constant
+ * returned by the synthetic method {@value #ACCESSOR_NAME}, so the runtime defines the kiddy pool classes
+ * without reading and parsing the class file of the raw class.
+ * If the raw class has no such method, the runtime computes the template using {@link #strip(byte[])},
+ * this is the only part of the runtime that requires ASM.
+ */
+public final class KiddyPoolTemplate {
+  private KiddyPoolTemplate() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Name of the synthetic method of a raw class that returns the template encoded as a string.
+   */
+  public static final String ACCESSOR_NAME = "$kiddyPoolTemplate";
+
+  /**
+   * Maximum size of a string constant in a class file, encoded in modified UTF-8.
+   */
+  private static final int MAX_CONSTANT_LENGTH = 65_535;
+
+  /**
+   * Returns the template of the kiddy pool classes of a raw class.
+   * @param bytecode the bytecode of the raw class, once rewritten.
+   * @return the bytecode of the template.
+   */
+  public static byte[] strip(byte[] bytecode) {
+    var reader = new ClassReader(bytecode);
+    // do not share the constant pool of the raw class, only keep the constants used by the accessors
+    var writer = new ClassWriter(0);
+    reader.accept(new ClassVisitor(ASM9, writer) {
+      @Override
+      public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        super.visit(version, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name + "$KiddyPool", null, "java/lang/Object", null);
+      }
+
+      @Override
+      public RecordComponentVisitor visitRecordComponent(String name, String descriptor, String signature) {
+        return null;
+      }
+
+      @Override
+      public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        return null;
+      }
+
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        if ((access & ACC_SYNTHETIC) != 0 && (name.startsWith("$P") || name.equals("$classData"))) {
+          return super.visitMethod(access, name, descriptor, signature, exceptions);
+        }
+        return null;
+      }
+    }, 0);
+    return writer.toByteArray();
+  }
+
+  /**
+   * Encodes a template as a string, one char per byte.
+   * @param template the bytecode of a template.
+   * @return the template encoded as a string or null if the string is too big to be stored as a constant.
+   */
+  public static String encode(byte[] template) {
+    // in modified UTF-8, the chars between 1 and 127 are encoded with one byte, the other chars with two bytes
+    var length = 0L;
+    for(var b: template) {
+      length += b > 0 ? 1 : 2;
+    }
+    if (length > MAX_CONSTANT_LENGTH) {
+      return null;
+    }
+    return new String(template, ISO_8859_1);
+  }
+}
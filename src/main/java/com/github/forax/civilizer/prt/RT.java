@@ -1,12 +1,5 @@
 package com.github.forax.civilizer.prt;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.FieldVisitor;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.RecordComponentVisitor;
-
 import java.io.IOException;
 import java.lang.invoke.CallSite;
 import java.lang.invoke.ConstantBootstraps;
@@ -17,12 +10,13 @@ import java.lang.invoke.MethodHandles.Lookup;
 import java.lang.invoke.MethodHandles.Lookup.ClassOption;
 import java.lang.invoke.MethodType;
 import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Method;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.IntStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import static java.lang.invoke.MethodHandles.constant;
 import static java.lang.invoke.MethodHandles.dropArguments;
@@ -32,14 +26,9 @@ import static java.lang.invoke.MethodHandles.foldArguments;
 import static java.lang.invoke.MethodHandles.guardWithTest;
 import static java.lang.invoke.MethodHandles.insertArguments;
 import static java.lang.invoke.MethodHandles.lookup;
-import static java.lang.invoke.MethodHandles.permuteArguments;
 import static java.lang.invoke.MethodHandles.publicLookup;
 import static java.lang.invoke.MethodType.methodType;
-import static org.objectweb.asm.Opcodes.ACC_FINAL;
-import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
-import static org.objectweb.asm.Opcodes.ACC_SUPER;
-import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
-import static org.objectweb.asm.Opcodes.ASM9;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 public final class RT {
   private RT() {
@@ -56,44 +45,73 @@ public final class RT {
     throw new LinkageError("method calls to this method should be rewritten by the rewriter");
   }
 
-  static Class<?> createKiddyPoolClass(Lookup lookup, Class<?> type, Anchor classData) {
+  private static volatile Function<? super Class<?>, byte[]> BYTECODE_FINDER = type -> null;
+
+  /**
+   * Sets a function that returns the rewritten bytecode of a class or null if the bytecode of the class resource
+   * is already rewritten. Used by the agent that rewrites the classes when they are loaded.
+   * @param bytecodeFinder a function that returns the rewritten bytecode of a class or null.
+   */
+  public static void bytecodeFinder(Function<? super Class<?>, byte[]> bytecodeFinder) {
+    BYTECODE_FINDER = Objects.requireNonNull(bytecodeFinder);
+  }
+
+  private static byte[] bytecode(Class<?> type) {
+    var bytecode = BYTECODE_FINDER.apply(type);
+    if (bytecode != null) {
+      return bytecode;
+    }
     var input = type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class");
     if (input == null) {
       throw new LinkageError("no bytecode available for " + type);
     }
-    byte[] bytecode;
     try(input) {
-      bytecode = input.readAllBytes();
+      return input.readAllBytes();
     } catch (IOException e) {
       throw (LinkageError) new LinkageError().initCause(e);
     }
-    var reader = new ClassReader(bytecode);
-    var writer = new ClassWriter(reader, 0);
-    reader.accept(new ClassVisitor(ASM9, writer) {
-      @Override
-      public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        super.visit(version, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name + "$KiddyPool", null, "java/lang/Object", null);
-      }
+  }
 
-      @Override
-      public RecordComponentVisitor visitRecordComponent(String name, String descriptor, String signature) {
-        return null;
+  /**
+   * The bytecode of the kiddy pool template of each raw class (see {@link KiddyPoolTemplate}).
+   * The template is computed once by raw class, so a new species only has to define a hidden class.
+   */
+  private static final ClassValue<byte[]> KIDDY_POOL_TEMPLATE_MAP = new ClassValue<>() {
+    @Override
+    protected byte[] computeValue(Class<?> type) {
+      var template = precomputedKiddyPoolTemplate(type);
+      if (template != null) {
+        return template;
       }
+      // no template stored by the rewriter, so load ASM and strip the bytecode of the raw class
+      return KiddyPoolTemplate.strip(bytecode(type));
+    }
+  };
 
-      @Override
-      public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
-        return null;
-      }
+  private static byte[] precomputedKiddyPoolTemplate(Class<?> type) {
+    var speciesLookup = privateSpeciesLookup(MethodHandles.lookup(), type);
+    MethodHandle accessor;
+    try {
+      accessor = speciesLookup.findStatic(type, KiddyPoolTemplate.ACCESSOR_NAME, methodType(String.class));
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      throw (IllegalAccessError) new IllegalAccessError().initCause(e);
+    }
+    String template;
+    try {
+      template = (String) accessor.invokeExact();
+    } catch(Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new LinkageError("error while accessing the kiddy pool template of " + type.getName(), e);
+    }
+    return template.getBytes(ISO_8859_1);
+  }
 
-      @Override
-      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-        if ((access & ACC_SYNTHETIC) != 0 && (name.startsWith("$P") || name.equals("$classData"))) {
-          return super.visitMethod(access, name, descriptor, signature, exceptions);
-        }
-        return null;
-      }
-    }, 0);
-    var data = writer.toByteArray();
+  static Class<?> createKiddyPoolClass(Lookup lookup, Class<?> type, Anchor classData) {
+    // the template is not modified, defineHiddenClass() does a defensive copy
+    var data = KIDDY_POOL_TEMPLATE_MAP.get(type);
 
     Lookup kiddyPoolLookup;
     try {
@@ -148,7 +166,7 @@ public final class RT {
     return kiddyPoolClass;
   }
 
-  private record SuperSpecies(HashMap<Class<?>, Class<?>> superMap) {}
+  private record SuperSpecies(ConcurrentHashMap<Class<?>, Class<?>> superMap) {}
 
   private static final ClassValue<SuperSpecies> SUPER_SPECIES_MAP = new ClassValue<>() {
     @Override
@@ -156,7 +174,7 @@ public final class RT {
       var superType = type.getAnnotation(SuperType.class);
       if (superType == null) {
         // no specialized super types specified
-        return new SuperSpecies(new HashMap<>());
+        return new SuperSpecies(new ConcurrentHashMap<>());
       }
       var superRef = superType.value();
       var speciesLookup = privateSpeciesLookup(MethodHandles.lookup(), type);
@@ -176,7 +194,7 @@ public final class RT {
       } catch (Throwable e) {
         throw new LinkageError("error while accessing super " + superRef, e);
       }
-      var superMap = new HashMap<Class<?>, Class<?>>();
+      var superMap = new ConcurrentHashMap<Class<?>, Class<?>>();
       for(var superSpecies: superValue.species()) {
         superMap.put(superSpecies.raw(), classKiddyPoolClass(speciesLookup, superSpecies.raw(), superSpecies.parameters()));
       }
@@ -200,9 +218,10 @@ public final class RT {
       // not parametric, superRaw is good enough
       superKiddyPool = superRaw;
     }
-    // update cache
-    superSpecies.superMap.put(superRaw, superKiddyPool);
-    return superKiddyPool;
+    // update cache, if another thread has already computed the kiddy pool, use it
+    // so all the threads see the same kiddy pool class
+    var previous = superSpecies.superMap.putIfAbsent(superRaw, superKiddyPool);
+    return previous != null ? previous : superKiddyPool;
   }
 
   private static Class<?> methodKiddyPoolClass(Lookup lookup, Class<?> raw, Object classParameters, String methodName, String methodDescriptor, Object methodParameters, MethodHandle method) {
@@ -218,17 +237,65 @@ public final class RT {
     return callBSM(speciesLookup, raw, bsmPoolRef, location, methodParameters);
   }
 
-  private static final class KiddyPoolRefInliningCache extends MutableCallSite {
+  /**
+   * Maximum number of guards of an inlining cache, after that the call site is megamorphic
+   * and the target is found by a lookup in a {@link ClassValue} indexed by the kiddy pool class.
+   */
+  private static final int MAX_INLINING_DEPTH = 8;
+
+  /**
+   * Base class of the inlining caches.
+   * The slow path of a call site can be called by several threads at the same time,
+   * only the first thread that takes the transition is allowed to change the target,
+   * the other threads call the target they have computed without linking it.
+   * The fast path (the guards) does not read the state.
+   */
+  private static abstract class InliningCache extends MutableCallSite {
+    private static final VarHandle STATE;
+    static {
+      try {
+        STATE = MethodHandles.lookup().findVarHandle(InliningCache.class, "state", int.class);
+      } catch (NoSuchFieldException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static final int UNLINKED = 0, LINKED = 1, MEGAMORPHIC = 2;
+
+    @SuppressWarnings("unused")  // used by the VarHandle
+    private volatile int state;
+
+    InliningCache(MethodType type) {
+      super(type);
+    }
+
+    /**
+     * Returns true if the current thread can install the guard of this call site.
+     */
+    final boolean startLinking() {
+      return STATE.compareAndSet(this, UNLINKED, LINKED);
+    }
+
+    /**
+     * Returns true if the current thread can relink this call site to the megamorphic path.
+     */
+    final boolean startMegamorphicLinking() {
+      return (int) STATE.getAndSet(this, MEGAMORPHIC) != MEGAMORPHIC;
+    }
+  }
+
+  private static final class KiddyPoolRefInliningCache extends InliningCache {
     @FunctionalInterface
     private interface BSM {
       CallSite apply(Object value) throws Throwable;
     }
 
-    private static final MethodHandle SLOW_PATH, POINTER_CHECK;
+    private static final MethodHandle SLOW_PATH, MEGAMORPHIC_PATH, POINTER_CHECK;
     static {
       var lookup = MethodHandles.lookup();
       try {
         SLOW_PATH = lookup.findVirtual(KiddyPoolRefInliningCache.class, "slowPath", methodType(MethodHandle.class, Object.class));
+        MEGAMORPHIC_PATH = lookup.findStatic(KiddyPoolRefInliningCache.class, "megamorphicPath", methodType(MethodHandle.class, ClassValue.class, Object.class));
         POINTER_CHECK = lookup.findStatic(KiddyPoolRefInliningCache.class, "pointerCheck", methodType(boolean.class, Object.class, Object.class));
       } catch (NoSuchMethodException | IllegalAccessException e) {
         throw new AssertionError(e);
@@ -238,13 +305,21 @@ public final class RT {
     private final Lookup lookup;
     private final BSM bsm;
     private final String kiddyPoolRef;
+    private final KiddyPoolRefInliningCache root;  // the call site linked to the invokedynamic
+    private final int depth;
 
-    @SuppressWarnings("ThisEscapedInObjectConstruction")
     private KiddyPoolRefInliningCache(MethodType type, Lookup lookup, String kiddyPoolRef, BSM bsm) {
+      this(type, lookup, kiddyPoolRef, bsm, null, 0);
+    }
+
+    @SuppressWarnings("ThisEscapedInObjectConstruction")
+    private KiddyPoolRefInliningCache(MethodType type, Lookup lookup, String kiddyPoolRef, BSM bsm, KiddyPoolRefInliningCache root, int depth) {
       super(type);
       this.lookup = lookup;
       this.kiddyPoolRef = kiddyPoolRef;
       this.bsm = bsm;
+      this.root = root == null ? this : root;
+      this.depth = depth;
       var combiner = dropArguments(SLOW_PATH.bindTo(this), 0, type.parameterList().subList(0, type.parameterCount() - 1));
       setTarget(foldArguments(exactInvoker(type), combiner));
     }
@@ -254,28 +329,67 @@ public final class RT {
       return o == o2;
     }
 
-    @SuppressWarnings("unused")  // used by reflection
-    private MethodHandle slowPath(Object kiddyPool) throws Throwable {
-      var accessor = lookup.findStatic((Class<?>) kiddyPool, "$" + kiddyPoolRef, methodType(Object.class));
+    private MethodHandle target(Class<?> kiddyPoolClass) throws Throwable {
+      var accessor = lookup.findStatic(kiddyPoolClass, "$" + kiddyPoolRef, methodType(Object.class));
       var value = accessor.invokeExact();
 
       var target = bsm.apply(value).dynamicInvoker();
-      target = dropArguments(target, type().parameterCount() - 1, Object.class);
+      return dropArguments(target, type().parameterCount() - 1, Object.class);
+    }
+
+    @SuppressWarnings("unused")  // used by reflection
+    private MethodHandle slowPath(Object kiddyPool) throws Throwable {
+      var target = target((Class<?>) kiddyPool);
+      if (depth == MAX_INLINING_DEPTH) {
+        root.relinkMegamorphic();
+        return target;
+      }
+      if (!startLinking()) {
+        // another thread has already installed a guard
+        return target;
+      }
 
       var test = dropArguments(POINTER_CHECK.bindTo(kiddyPool),0, type().parameterList().subList(0, type().parameterCount() - 1));
-      var guard = guardWithTest(test, target, new KiddyPoolRefInliningCache(type(), lookup, kiddyPoolRef, bsm).dynamicInvoker());
+      var guard = guardWithTest(test, target, new KiddyPoolRefInliningCache(type(), lookup, kiddyPoolRef, bsm, root, depth + 1).dynamicInvoker());
       setTarget(guard);
 
       return target;
     }
+
+    private void relinkMegamorphic() {
+      if (!startMegamorphicLinking()) {
+        return;
+      }
+      var megamorphicTargets = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> kiddyPoolClass) {
+          try {
+            return target(kiddyPoolClass);
+          } catch (RuntimeException | Error e) {
+            throw e;
+          } catch (Throwable e) {
+            throw new LinkageError("error while linking " + kiddyPoolRef + " of " + kiddyPoolClass.getName(), e);
+          }
+        }
+      };
+      // the ClassValue is bound to the method handle, so it is safely published with the target
+      var combiner = dropArguments(MEGAMORPHIC_PATH.bindTo(megamorphicTargets), 0, type().parameterList().subList(0, type().parameterCount() - 1));
+      setTarget(foldArguments(exactInvoker(type()), combiner));
+    }
+
+    @SuppressWarnings("unused")  // used by reflection
+    private static MethodHandle megamorphicPath(ClassValue<MethodHandle> megamorphicTargets, Object kiddyPool) {
+      return megamorphicTargets.get((Class<?>) kiddyPool);
+    }
   }
 
-  private static final class KiddyPoolSuperInliningCache extends MutableCallSite {
-    private static final MethodHandle SLOW_PATH, POINTER_CHECK;
+  private static final class KiddyPoolSuperInliningCache extends InliningCache {
+    private static final MethodHandle SLOW_PATH, MEGAMORPHIC_PATH, POINTER_CHECK;
     static {
       var lookup = MethodHandles.lookup();
       try {
         SLOW_PATH = lookup.findVirtual(KiddyPoolSuperInliningCache.class, "slowPath", methodType(MethodHandle.class, Object.class));
+        MEGAMORPHIC_PATH = lookup.findVirtual(KiddyPoolSuperInliningCache.class, "megamorphicPath", methodType(Object.class, Object.class));
         POINTER_CHECK = lookup.findStatic(KiddyPoolSuperInliningCache.class, "pointerCheck", methodType(boolean.class, Object.class, Object.class));
       } catch (NoSuchMethodException | IllegalAccessException e) {
         throw new AssertionError(e);
@@ -284,12 +398,20 @@ public final class RT {
 
     private final Lookup lookup;
     private final Class<?> superRaw;
+    private final KiddyPoolSuperInliningCache root;  // the call site returned to the caller
+    private final int depth;
 
-    @SuppressWarnings("ThisEscapedInObjectConstruction")
     private KiddyPoolSuperInliningCache(MethodType type, Lookup lookup, Class<?> superRaw) {
+      this(type, lookup, superRaw, null, 0);
+    }
+
+    @SuppressWarnings("ThisEscapedInObjectConstruction")
+    private KiddyPoolSuperInliningCache(MethodType type, Lookup lookup, Class<?> superRaw, KiddyPoolSuperInliningCache root, int depth) {
       super(type);
       this.lookup = lookup;
       this.superRaw = superRaw;
+      this.root = root == null ? this : root;
+      this.depth = depth;
       var combiner = dropArguments(SLOW_PATH.bindTo(this), 0, type.parameterList().subList(0, type.parameterCount() - 1));
       setTarget(foldArguments(exactInvoker(type), combiner));
     }
@@ -305,27 +427,61 @@ public final class RT {
       var superKiddyPool = superKiddyPool(lookup, kiddyPoolClass, superRaw);
 
       var target = dropArguments(constant(Object.class, superKiddyPool), 0, Object.class);
+      if (depth == MAX_INLINING_DEPTH) {
+        if (root.startMegamorphicLinking()) {
+          // the super kiddy pools are already stored in a ClassValue, see superKiddyPool()
+          root.setTarget(MEGAMORPHIC_PATH.bindTo(root));
+        }
+        return target;
+      }
+      if (!startLinking()) {
+        // another thread has already installed a guard
+        return target;
+      }
 
       var test = POINTER_CHECK.bindTo(kiddyPool);
-      var guard = guardWithTest(test, target, new KiddyPoolSuperInliningCache(type(), lookup, superRaw).dynamicInvoker());
+      var guard = guardWithTest(test, target, new KiddyPoolSuperInliningCache(type(), lookup, superRaw, root, depth + 1).dynamicInvoker());
       setTarget(guard);
 
       return target;
     }
+
+    @SuppressWarnings("unused")  // used by reflection
+    private Object megamorphicPath(Object kiddyPool) {
+      return superKiddyPool(lookup, (Class<?>) kiddyPool, superRaw);
+    }
   }
 
-  private static final class VirtualCallInliningCache extends MutableCallSite {
+  /**
+   * A polymorphic inlining cache keyed on the pair (receiver class, kiddy pool of the receiver),
+   * the kiddy pool is only checked if the receiver class is parametric.
+   * After {@link #MAX_INLINING_DEPTH} guards, the call site is relinked to a dispatch table indexed by
+   * the receiver class then, if the receiver class is parametric, by the kiddy pool class.
+   */
+  private static final class VirtualCallInliningCache extends InliningCache {
     @FunctionalInterface
     private interface VirtualCallBSM {
-      CallSite apply(Class<?> receiverClass) throws Throwable;
+      /**
+       * @param receiverClass the class of the receiver.
+       * @param kiddyPool the kiddy pool of the receiver or null if the receiver class is not parametric.
+       */
+      CallSite apply(Class<?> receiverClass, Object kiddyPool) throws Throwable;
     }
 
-    private static final MethodHandle SLOW_PATH, CLASS_CHECK;
+    /**
+     * An entry of the dispatch table, either a target if the receiver class is not parametric
+     * or a kiddy pool getter and the targets indexed by the kiddy pool class.
+     */
+    private record ReceiverDispatch(MethodHandle target, MethodHandle kiddyPoolGetter, ClassValue<MethodHandle> targets) {}
+
+    private static final MethodHandle SLOW_PATH, MEGAMORPHIC_PATH, CLASS_CHECK, POINTER_CHECK;
     static {
       var lookup = MethodHandles.lookup();
       try {
         SLOW_PATH = lookup.findVirtual(VirtualCallInliningCache.class, "slowPath", methodType(MethodHandle.class, Object.class));
+        MEGAMORPHIC_PATH = lookup.findStatic(VirtualCallInliningCache.class, "megamorphicPath", methodType(MethodHandle.class, ClassValue.class, Object.class));
         CLASS_CHECK = lookup.findStatic(VirtualCallInliningCache.class, "classCheck", methodType(boolean.class, Class.class, Object.class));
+        POINTER_CHECK = lookup.findStatic(VirtualCallInliningCache.class, "pointerCheck", methodType(boolean.class, Object.class, Object.class));
       } catch (NoSuchMethodException | IllegalAccessException e) {
         throw new AssertionError(e);
       }
@@ -333,12 +489,20 @@ public final class RT {
 
     private final Lookup lookup;
     private final VirtualCallBSM bsm;
+    private final VirtualCallInliningCache root;  // the call site linked to the invokedynamic
+    private final int depth;
 
-    @SuppressWarnings("ThisEscapedInObjectConstruction")
     private VirtualCallInliningCache(MethodType type, Lookup lookup, VirtualCallBSM bsm) {
+      this(type, lookup, bsm, null, 0);
+    }
+
+    @SuppressWarnings("ThisEscapedInObjectConstruction")
+    private VirtualCallInliningCache(MethodType type, Lookup lookup, VirtualCallBSM bsm, VirtualCallInliningCache root, int depth) {
       super(type);
       this.lookup = lookup;
       this.bsm = bsm;
+      this.root = root == null ? this : root;
+      this.depth = depth;
       var combiner = SLOW_PATH.bindTo(this);
       setTarget(foldArguments(exactInvoker(type), combiner.asType(methodType(MethodHandle.class, type.parameterType(0)))));
     }
@@ -348,17 +512,98 @@ public final class RT {
       return o.getClass() == clazz;
     }
 
+    @SuppressWarnings("unused")  // used by reflection
+    private static boolean pointerCheck(Object o, Object o2) {
+      return o == o2;
+    }
+
+    private MethodHandle kiddyPoolGetter(Class<?> receiverClass) throws NoSuchFieldException, IllegalAccessException {
+      if (!receiverClass.isAnnotationPresent(Parametric.class)) {
+        return null;
+      }
+      var speciesLookup = privateSpeciesLookup(lookup, receiverClass);
+      return speciesLookup.findGetter(receiverClass, "$kiddyPool", Object.class)
+          .asType(methodType(Object.class, Object.class));
+    }
+
     @SuppressWarnings("unused")  // used by reflection
     private MethodHandle slowPath(Object receiver) throws Throwable {
       var receiverClass = receiver.getClass();
-      var target = bsm.apply(receiverClass).dynamicInvoker();
+      var kiddyPoolGetter = kiddyPoolGetter(receiverClass);
+      var kiddyPool = kiddyPoolGetter == null ? null : kiddyPoolGetter.invokeExact(receiver);
+      var target = bsm.apply(receiverClass, kiddyPool).dynamicInvoker();
+      if (depth == MAX_INLINING_DEPTH) {
+        root.relinkMegamorphic();
+        return target;
+      }
+      if (!startLinking()) {
+        // another thread has already installed a guard
+        return target;
+      }
 
-      var test = CLASS_CHECK.bindTo(receiverClass).asType(methodType(boolean.class, type().parameterType(0)));
-      var guard = guardWithTest(test, target, new VirtualCallInliningCache(type(), lookup, bsm).dynamicInvoker());
-      setTarget(guard);
+      var receiverType = type().parameterType(0);
+      var fallback = new VirtualCallInliningCache(type(), lookup, bsm, root, depth + 1).dynamicInvoker();
+      var guard = target;
+      if (kiddyPoolGetter != null) {
+        // the kiddy pool is read after the class check
+        var kiddyPoolTest = filterArguments(POINTER_CHECK.bindTo(kiddyPool), 0, kiddyPoolGetter)
+            .asType(methodType(boolean.class, receiverType));
+        guard = guardWithTest(kiddyPoolTest, guard, fallback);
+      }
+      var test = CLASS_CHECK.bindTo(receiverClass).asType(methodType(boolean.class, receiverType));
+      setTarget(guardWithTest(test, guard, fallback));
 
       return target;
     }
+
+    private MethodHandle target(Class<?> receiverClass, Object kiddyPool) {
+      try {
+        return bsm.apply(receiverClass, kiddyPool).dynamicInvoker();
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new LinkageError("error while linking " + receiverClass.getName(), e);
+      }
+    }
+
+    private void relinkMegamorphic() {
+      if (!startMegamorphicLinking()) {
+        return;
+      }
+      var dispatchTable = new ClassValue<ReceiverDispatch>() {
+        @Override
+        protected ReceiverDispatch computeValue(Class<?> receiverClass) {
+          MethodHandle kiddyPoolGetter;
+          try {
+            kiddyPoolGetter = kiddyPoolGetter(receiverClass);
+          } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new LinkageError("no kiddy pool field in " + receiverClass.getName(), e);
+          }
+          if (kiddyPoolGetter == null) {
+            return new ReceiverDispatch(target(receiverClass, null), null, null);
+          }
+          return new ReceiverDispatch(null, kiddyPoolGetter, new ClassValue<>() {
+            @Override
+            protected MethodHandle computeValue(Class<?> kiddyPoolClass) {
+              return target(receiverClass, kiddyPoolClass);
+            }
+          });
+        }
+      };
+      // the dispatch table is bound to the method handle, so it is safely published with the target
+      var combiner = MEGAMORPHIC_PATH.bindTo(dispatchTable).asType(methodType(MethodHandle.class, type().parameterType(0)));
+      setTarget(foldArguments(exactInvoker(type()), combiner));
+    }
+
+    @SuppressWarnings("unused")  // used by reflection
+    private static MethodHandle megamorphicPath(ClassValue<ReceiverDispatch> dispatchTable, Object receiver) throws Throwable {
+      var dispatch = dispatchTable.get(receiver.getClass());
+      if (dispatch.kiddyPoolGetter == null) {
+        return dispatch.target;
+      }
+      var kiddyPool = dispatch.kiddyPoolGetter.invokeExact(receiver);
+      return dispatch.targets.get((Class<?>) kiddyPool);
+    }
   }
 
   @SuppressWarnings({"unused", "WeakerAccess"})  // used by reflection
@@ -431,35 +676,21 @@ public final class RT {
       if (linkage.parameters() != null) {
         // an inlining cache for the receiver
         return new VirtualCallInliningCache(type, lookup,
-            receiverClass -> {
-              var parametric = receiverClass.getAnnotation(Parametric.class);
+            (receiverClass, kiddyPool) -> {
               var speciesLookup = privateSpeciesLookup(lookup, receiverClass);
-              if (parametric != null) {
-                // an inlining cache for the kiddyPool $classData constant pool ref
-                var inliningCache = new KiddyPoolRefInliningCache(type.appendParameterTypes(Object.class), speciesLookup, "classData",
-                    anchor -> {
-                      var classParameters = ((Anchor) anchor).classParameters;
-
-                      // call the de-virtualized method with a kiddy pool created with the pair (species parameter + method parameter)
-                      var method = speciesLookup.findVirtual(receiverClass, name, type.dropParameterTypes(0, 1).appendParameterTypes(Object.class));
-                      var kiddyPoolClass = methodKiddyPoolClass(speciesLookup, receiverClass, classParameters, name, type.toMethodDescriptorString(), linkage.parameters(), method);
-                      var target = insertArguments(method, type.parameterCount(), kiddyPoolClass);
-                      return new ConstantCallSite(target);
-                    });
-
-                // access to the kiddy pool of the receiver
-                var kiddyPoolGetter = speciesLookup.findGetter(receiverClass, "$kiddyPool", Object.class);
-                var mh = filterArguments(inliningCache.dynamicInvoker(), type.parameterCount(), kiddyPoolGetter);
-                var reorder = IntStream.concat(IntStream.range(0, type.parameterCount()), IntStream.of(0)).toArray();
-                var target = permuteArguments(mh, type, reorder);
-                return new ConstantCallSite(target);
+              Object classParameters = null;
+              if (kiddyPool != null) {
+                // the species parameters are stored in the $classData of the kiddy pool
+                var accessor = speciesLookup.findStatic((Class<?>) kiddyPool, "$classData", methodType(Object.class));
+                var anchor = (Anchor) (Object) accessor.invokeExact();
+                classParameters = anchor.classParameters;
               }
 
-              // call the de-virtualized method with a kiddy pool created with no species parameters (only a method parameters)
+              // call the de-virtualized method with a kiddy pool created with the pair (species parameters + method parameters)
               var method = speciesLookup.findVirtual(receiverClass, name, type.dropParameterTypes(0, 1).appendParameterTypes(Object.class));
-              var kiddyPoolClass = methodKiddyPoolClass(speciesLookup, receiverClass, null, name, type.toMethodDescriptorString(), linkage.parameters(), method);
+              var kiddyPoolClass = methodKiddyPoolClass(speciesLookup, receiverClass, classParameters, name, type.toMethodDescriptorString(), linkage.parameters(), method);
               var target = insertArguments(method, type.parameterCount(), kiddyPoolClass);
-              return new ConstantCallSite(target);
+              return new ConstantCallSite(target.asType(type));
             });
       }
 
@@ -498,8 +729,14 @@ public final class RT {
     //System.out.println("bsm_new_array " + type + " " + constant);
 
     if (constant instanceof Linkage linkage) {
-      var specializedClass = ((Class<?>) linkage.parameters()).arrayType();
-      var newArray = MethodHandles.arrayConstructor(specializedClass);  //FIXME, should create a restricted array if necessary
+      var component = (Class<?>) linkage.parameters();
+      MethodHandle newArray;
+      if (com.github.forax.civilizer.vrt.RT.isImplicitlyConstructible(component)) {
+        // same semantics as bsm_newFlattableArray, the array is flattened
+        newArray = insertArguments(NEW_NULL_RESTRICTED_ARRAY_MH, 0, component);
+      } else {
+        newArray = MethodHandles.arrayConstructor(component.arrayType());
+      }
       var target = newArray.asType(type);
       return new ConstantCallSite(target);
     }
@@ -674,18 +911,10 @@ public final class RT {
 
     var rawSuper = lookup.lookupClass();
     return new VirtualCallInliningCache(type, lookup,
-        receiverClass -> {
+        (receiverClass, kiddyPool) -> {
           var receiverLookup = privateSpeciesLookup(lookup, receiverClass);
-          var isParametric = receiverClass.isAnnotationPresent(Parametric.class);
-          if (isParametric) {
-             var inliningCache = new KiddyPoolSuperInliningCache(methodType(Object.class, Object.class), receiverLookup, rawSuper);
-             var kiddyPoolGetter = receiverLookup.findGetter(receiverClass, "$kiddyPool", Object.class)
-                 .asType(methodType(Object.class, type.parameterType(0)));
-             var target = filterArguments(inliningCache.dynamicInvoker(), 0, kiddyPoolGetter);
-             return new ConstantCallSite(target);
-          }
-
-          var superKiddyPool = superKiddyPool(receiverLookup, receiverClass, rawSuper);
+          var kiddyPoolClass = kiddyPool == null ? receiverClass : (Class<?>) kiddyPool;
+          var superKiddyPool = superKiddyPool(receiverLookup, kiddyPoolClass, rawSuper);
           var target = dropArguments(constant(Object.class, superKiddyPool), 0, type.parameterType(0));
           return new ConstantCallSite(target);
         });
@@ -0,0 +1,131 @@
+package com.github.forax.civilizer.parametric;
+
+import com.github.forax.civilizer.prt.Parametric;
+import com.github.forax.civilizer.prt.RT;
+import com.github.forax.civilizer.prt.SuperType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SuppressWarnings({"ReturnValueIgnored", "UnusedVariable"})
+public class ConcurrentLinkageTest {
+  @Parametric("P0")
+  interface ParametricInterface<T> {
+    String $P0 = "mh Lcom/github/forax/civilizer/prt/JDK; 'identity (Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+    String $P1 = "anchor P0;";
+    String $P2 = "list.get P1; 0";
+
+    default Object interfaceDump() {
+      "P2".intern();
+      return RT.ldc();
+    }
+  }
+
+  @Parametric("P0")
+  static class BaseClass<T> {
+    private static final String $P0 = "mh Lcom/github/forax/civilizer/prt/JDK; 'identity (Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final String $P1 = "anchor P0;";
+    private static final String $P2 = "list.get P1; 0";
+
+    Object classDump() {
+      "P2".intern();
+      return RT.ldc();
+    }
+  }
+
+  @Parametric("P0")
+  @SuperType("P4")
+  static class SubType<T> extends BaseClass<T> implements ParametricInterface<T> {
+    private static final String $P0 = "mh Lcom/github/forax/civilizer/prt/JDK; 'identity (Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final String $P1 = "anchor P0;";
+    private static final String $P2 = "species Lcom/github/forax/civilizer/parametric/ConcurrentLinkageTest$BaseClass; P1;";
+    private static final String $P3 = "species Lcom/github/forax/civilizer/parametric/ConcurrentLinkageTest$ParametricInterface; P1;";
+    private static final String $P4 = "super P2; P3;";
+  }
+
+  static final class Species {
+    private static final String $P0 = "list Ljava/lang/String;";
+    private static final String $P1 = "linkage P0;";
+    private static final String $P2 = "list Ljava/lang/Integer;";
+    private static final String $P3 = "linkage P2;";
+    private static final String $P4 = "list Ljava/lang/Long;";
+    private static final String $P5 = "linkage P4;";
+    private static final String $P6 = "list Ljava/lang/Double;";
+    private static final String $P7 = "linkage P6;";
+    private static final String $P8 = "list Ljava/lang/Float;";
+    private static final String $P9 = "linkage P8;";
+    private static final String $P10 = "list Ljava/lang/Short;";
+    private static final String $P11 = "linkage P10;";
+    private static final String $P12 = "list Ljava/lang/Byte;";
+    private static final String $P13 = "linkage P12;";
+    private static final String $P14 = "list Ljava/lang/Character;";
+    private static final String $P15 = "linkage P14;";
+    private static final String $P16 = "list Ljava/lang/Boolean;";
+    private static final String $P17 = "linkage P16;";
+    private static final String $P18 = "list Ljava/lang/Object;";
+    private static final String $P19 = "linkage P18;";
+
+    static List<SubType<?>> arguments() {
+      var arguments = new ArrayList<SubType<?>>();
+      "P1".intern();
+      arguments.add(new SubType<String>());
+      "P3".intern();
+      arguments.add(new SubType<Integer>());
+      "P5".intern();
+      arguments.add(new SubType<Long>());
+      "P7".intern();
+      arguments.add(new SubType<Double>());
+      "P9".intern();
+      arguments.add(new SubType<Float>());
+      "P11".intern();
+      arguments.add(new SubType<Short>());
+      "P13".intern();
+      arguments.add(new SubType<Byte>());
+      "P15".intern();
+      arguments.add(new SubType<Character>());
+      "P17".intern();
+      arguments.add(new SubType<Boolean>());
+      "P19".intern();
+      arguments.add(new SubType<Object>());
+      return arguments;
+    }
+  }
+
+  @Test
+  public void firstLinkageFromManyVirtualThreads() throws InterruptedException {
+    // all the threads link the same call sites at the same time,
+    // there are more species than the size of the inlining caches, so the call sites also become megamorphic
+    var expected = List.of(String.class, Integer.class, Long.class, Double.class, Float.class, Short.class, Byte.class, Character.class, Boolean.class, Object.class);
+    var errors = new ConcurrentLinkedQueue<Throwable>();
+    var start = new CountDownLatch(1);
+    var threads = new ArrayList<Thread>();
+    for(var i = 0; i < 500; i++) {
+      threads.add(Thread.ofVirtual().start(() -> {
+        try {
+          start.await();
+          for(var round = 0; round < 2; round++) {
+            var arguments = Species.arguments();
+            for(var j = 0; j < arguments.size(); j++) {
+              var argument = arguments.get(j);
+              assertEquals(expected.get(j), argument.classDump());
+              assertEquals(expected.get(j), argument.interfaceDump());
+            }
+          }
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      }));
+    }
+    start.countDown();
+    for(var thread: threads) {
+      thread.join();
+    }
+    assertTrue(errors.isEmpty(), () -> errors.size() + " errors, first " + errors.peek());
+  }
+}
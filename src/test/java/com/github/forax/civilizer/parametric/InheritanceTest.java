@@ -5,6 +5,7 @@ import com.github.forax.civilizer.prt.RT;
 import com.github.forax.civilizer.prt.SuperType;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
 
@@ -196,6 +197,80 @@ public class InheritanceTest {
   }
 
 
+  @Test
+  public void testDefaultMethodParametricClassManySpecies() {
+    @Parametric("P0")
+    @SuperType("P3")
+    record ParametricArgument<T>() implements ParametricInterface<T> {
+      private static final String $P0 = "mh Lcom/github/forax/civilizer/prt/JDK; 'identity (Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+      private static final String $P1 = "anchor P0;";
+      private static final String $P2 = "species Lcom/github/forax/civilizer/parametric/InheritanceTest$ParametricInterface; P1;";
+      private static final String $P3 = "super P2;";
+    }
+
+    class TestParametricArgument {
+      private static final String $P0 = "list Ljava/lang/String;";
+      private static final String $P1 = "linkage P0;";
+      private static final String $P2 = "list Ljava/lang/Integer;";
+      private static final String $P3 = "linkage P2;";
+      private static final String $P4 = "list Ljava/lang/Long;";
+      private static final String $P5 = "linkage P4;";
+      private static final String $P6 = "list Ljava/lang/Double;";
+      private static final String $P7 = "linkage P6;";
+      private static final String $P8 = "list Ljava/lang/Float;";
+      private static final String $P9 = "linkage P8;";
+      private static final String $P10 = "list Ljava/lang/Short;";
+      private static final String $P11 = "linkage P10;";
+      private static final String $P12 = "list Ljava/lang/Byte;";
+      private static final String $P13 = "linkage P12;";
+      private static final String $P14 = "list Ljava/lang/Character;";
+      private static final String $P15 = "linkage P14;";
+      private static final String $P16 = "list Ljava/lang/Boolean;";
+      private static final String $P17 = "linkage P16;";
+      private static final String $P18 = "list Ljava/lang/Object;";
+      private static final String $P19 = "linkage P18;";
+
+      static List<ParametricArgument<?>> arguments() {
+        var arguments = new ArrayList<ParametricArgument<?>>();
+        "P1".intern();
+        arguments.add(new ParametricArgument<String>());
+        "P3".intern();
+        arguments.add(new ParametricArgument<Integer>());
+        "P5".intern();
+        arguments.add(new ParametricArgument<Long>());
+        "P7".intern();
+        arguments.add(new ParametricArgument<Double>());
+        "P9".intern();
+        arguments.add(new ParametricArgument<Float>());
+        "P11".intern();
+        arguments.add(new ParametricArgument<Short>());
+        "P13".intern();
+        arguments.add(new ParametricArgument<Byte>());
+        "P15".intern();
+        arguments.add(new ParametricArgument<Character>());
+        "P17".intern();
+        arguments.add(new ParametricArgument<Boolean>());
+        "P19".intern();
+        arguments.add(new ParametricArgument<Object>());
+        return arguments;
+      }
+
+      static void test() {
+        // more species than the size of the inlining cache, the call site becomes megamorphic
+        var arguments = arguments();
+        var expected = List.of(String.class, Integer.class, Long.class, Double.class, Float.class, Short.class, Byte.class, Character.class, Boolean.class, Object.class);
+        for(var round = 0; round < 2; round++) {
+          for(var i = 0; i < arguments.size(); i++) {
+            assertEquals(expected.get(i), arguments.get(i).dump());
+          }
+        }
+      }
+    }
+
+    TestParametricArgument.test();
+  }
+
+
   @Parametric("P1")
   interface ParametricInterface2<T> {
     String $P0 = "list Ljava/lang/Object;";
@@ -0,0 +1,87 @@
+package com.github.forax.civilizer.parametric;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.objectweb.asm.Opcodes.ASM9;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+
+public class InternMarkerTest {
+  private static List<String> markers(Path path) throws IOException {
+    var markers = new ArrayList<String>();
+    var reader = new ClassReader(Files.readAllBytes(path));
+    reader.accept(new ClassVisitor(ASM9) {
+      @Override
+      public MethodVisitor visitMethod(int access, String methodName, String methodDescriptor, String signature, String[] exceptions) {
+        return new MethodVisitor(ASM9) {
+          private String constant;
+
+          @Override
+          public void visitLdcInsn(Object value) {
+            constant = value instanceof String s ? s : null;
+          }
+
+          @Override
+          public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (constant != null && opcode == INVOKEVIRTUAL && owner.equals("java/lang/String") && name.equals("intern")) {
+              markers.add(reader.getClassName() + "." + methodName + methodDescriptor + " \"" + constant + "\"");
+            }
+            constant = null;
+          }
+
+          @Override
+          public void visitInsn(int opcode) {
+            constant = null;
+          }
+
+          @Override
+          public void visitIntInsn(int opcode, int operand) {
+            constant = null;
+          }
+
+          @Override
+          public void visitVarInsn(int opcode, int varIndex) {
+            constant = null;
+          }
+
+          @Override
+          public void visitTypeInsn(int opcode, String type) {
+            constant = null;
+          }
+
+          @Override
+          public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            constant = null;
+          }
+        };
+      }
+    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return markers;
+  }
+
+  @Test
+  public void noInternMarkerInRewrittenClasses() throws IOException, URISyntaxException {
+    var directory = Path.of(InternMarkerTest.class.getResource("SimpleListTest.class").toURI()).getParent();
+    List<Path> paths;
+    try(var stream = Files.list(directory)) {
+      paths = stream.filter(path -> path.toString().endsWith(".class")).toList();
+    }
+    assertTrue(paths.size() > 1);
+    var markers = new ArrayList<String>();
+    for(var path: paths) {
+      markers.addAll(markers(path));
+    }
+    assertEquals(List.of(), markers);
+  }
+}
@@ -6,7 +6,11 @@ import com.github.forax.civilizer.value.Complex;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings({"ReturnValueIgnored", "UnusedVariable"})
 public class NullRestrictedArrayTest {
@@ -25,6 +29,21 @@ public class NullRestrictedArrayTest {
     }
   }
 
+  @Parametric("P1")
+  static class ArrayNew<E> {
+    private static final String $P0 = "list Ljava/lang/Object;";
+    private static final String $P1 = "mh Lcom/github/forax/civilizer/prt/JDK; 'erase (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object; P0;";
+    private static final String $P2 = "anchor P1;";
+    private static final String $P3 = "list.get P2; 0";
+    private static final String $P4 = "linkage P3;";
+
+    @SuppressWarnings("unchecked")
+    public E[] create(int length) {
+      "P4".intern();
+      return (E[]) new Object[length];
+    }
+  }
+
   private static final String $P_string_0 = "list Ljava/lang/String;";
   private static final String $P_string_1 = "linkage P_string_0;";
 
@@ -49,4 +68,27 @@ public class NullRestrictedArrayTest {
     var array = arrayCreation.create(16);
     Assertions.assertThrows(NullPointerException.class, () -> array[0] = null);
   }
+
+  @Test
+  public void newArrayOfIdentity() {
+    "P_string_1".intern();
+    var arrayNew = new ArrayNew<String>();
+
+    var array = arrayNew.create(16);
+    array[0] = null;
+    assertSame(String[].class, array.getClass());
+  }
+
+  @Test
+  public void newArrayNullRestricted() {
+    "P_complex_1".intern();
+    var arrayNew = new ArrayNew<Complex>();
+
+    var array = arrayNew.create(16);
+    assertAll(
+        () -> assertTrue(com.github.forax.civilizer.vrt.RT.isNullRestrictedArray(array)),
+        () -> assertEquals(Complex.of(0.0, 0.0), array[0]),
+        () -> assertThrows(NullPointerException.class, () -> array[0] = null)
+    );
+  }
 }
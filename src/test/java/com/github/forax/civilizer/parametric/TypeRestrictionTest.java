@@ -2,6 +2,7 @@ package com.github.forax.civilizer.parametric;
 
 import com.github.forax.civilizer.value.Complex;
 import com.github.forax.civilizer.prt.Parametric;
+import com.github.forax.civilizer.prt.SuperType;
 import com.github.forax.civilizer.prt.TypeRestriction;
 import org.junit.jupiter.api.Test;
 
@@ -31,6 +32,50 @@ public class TypeRestrictionTest {
     }
   }
 
+  @Parametric("P1")
+  static class ComplexHolder<T> {
+    private static final String $P0 = "list Ljava/lang/Object;";
+    private static final String $P1 = "mh Lcom/github/forax/civilizer/prt/JDK; 'erase (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object; P0;";
+    private static final String $P2 = "restriction Lcom/github/forax/civilizer/value/Complex;";
+
+    @TypeRestriction("P2")
+    private T t;
+
+    ComplexHolder() { }
+
+    T get() { return t; }
+
+    void set(Object value) {
+      this.t = (T) value;  // should check type restriction
+    }
+  }
+
+  @Parametric("P1")
+  static class ComplexBase<T> {
+    private static final String $P0 = "list Ljava/lang/Object;";
+    private static final String $P1 = "mh Lcom/github/forax/civilizer/prt/JDK; 'erase (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object; P0;";
+    private static final String $P2 = "restriction Lcom/github/forax/civilizer/value/Complex;";
+
+    @TypeRestriction("P2")
+    T t;
+
+    ComplexBase() { }
+  }
+
+  @Parametric("P1")
+  @SuperType("P4")
+  static class ComplexSub<T> extends ComplexBase<T> {
+    private static final String $P0 = "list Ljava/lang/Object;";
+    private static final String $P1 = "mh Lcom/github/forax/civilizer/prt/JDK; 'erase (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object; P0;";
+    private static final String $P2 = "anchor P1;";
+    private static final String $P3 = "species Lcom/github/forax/civilizer/parametric/TypeRestrictionTest$ComplexBase; P2;";
+    private static final String $P4 = "super P3;";
+
+    Object read() {
+      return this.t;
+    }
+  }
+
   @Test
   public void initIdentityDefault() {
     final class TestIdentityDefault {
@@ -80,4 +125,21 @@ public class TypeRestrictionTest {
     }
     TestZeroDefault.initDefault();
   }
+
+  @Test
+  public void specializedFieldStorage() throws NoSuchFieldException {
+    var holder = new ComplexHolder<Complex>();
+    assertEquals(Complex.of(0.0, 0.0), holder.get());
+    assertEquals(Complex.class, ComplexHolder.class.getDeclaredField("t").getType());
+
+    holder.set(Complex.of(1.0, 2.0));
+    assertEquals(Complex.of(1.0, 2.0), holder.get());
+    assertThrows(NullPointerException.class, () -> holder.set(null));
+  }
+
+  @Test
+  public void restrictedFieldSubclassAccess() {
+    var sub = new ComplexSub<Complex>();
+    assertEquals(Complex.of(0.0, 0.0), sub.read());
+  }
 }
@@ -3,12 +3,15 @@ package com.github.forax.civilizer.value;
 import com.github.forax.civilizer.vrt.RT;
 import com.github.forax.civilizer.vrt.Value;
 import com.github.forax.civilizer.vrt.ImplicitlyConstructible;
+import org.jspecify.annotations.NonNull;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ArrayTest {
   @Test
@@ -56,4 +59,48 @@ public class ArrayTest {
         () -> assertThrows(NullPointerException.class, () -> array[1] = null)
     );
   }
+
+  @Test
+  public void newArrayOfNonNullZeroBasedClas() {
+    @ImplicitlyConstructible
+    @Value class ZeroDefaultFoo {}
+
+    var array = new @NonNull ZeroDefaultFoo[3];
+    assertAll(
+        () -> assertTrue(RT.isNullRestrictedArray(array)),
+        () -> assertEquals(new ZeroDefaultFoo(), array[0]),
+        () -> assertThrows(NullPointerException.class, () -> array[1] = null)
+    );
+  }
+
+  @Test
+  public void newNestedArrayOfNonNullZeroBasedClas() {
+    @ImplicitlyConstructible
+    @Value class ZeroDefaultFoo {}
+    @ImplicitlyConstructible
+    @Value class ZeroDefaultBar {}
+
+    var length = 3;
+    ZeroDefaultBar[] bars;
+    var array = new @NonNull ZeroDefaultFoo[(bars = new ZeroDefaultBar[length]).length];
+    assertAll(
+        () -> assertTrue(RT.isNullRestrictedArray(array)),
+        () -> assertEquals(3, array.length),
+        () -> assertFalse(RT.isNullRestrictedArray(bars)),
+        () -> assertNull(bars[0])
+    );
+  }
+
+  @Test
+  public void newArrayOfNonNullZeroBasedClasBranchLength() {
+    @ImplicitlyConstructible
+    @Value class ZeroDefaultFoo {}
+
+    var length = 3;
+    var array = new @NonNull ZeroDefaultFoo[length > 0 ? length : 1];
+    assertAll(
+        () -> assertTrue(RT.isNullRestrictedArray(array)),
+        () -> assertEquals(new ZeroDefaultFoo(), array[0])
+    );
+  }
 }
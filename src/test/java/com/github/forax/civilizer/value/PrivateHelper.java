@@ -0,0 +1,22 @@
+package com.github.forax.civilizer.value;
+
+import org.jspecify.annotations.NullMarked;
+
+/**
+ * A top level class without nested classes, so it has no NestHost or NestMembers attribute
+ * and the rewriter can remove the parameter checks of its private methods (see {@link ValueTest}).
+ */
+@NullMarked
+final class PrivateHelper {
+  private PrivateHelper() {
+    throw new AssertionError();
+  }
+
+  static ValueTest.Foo bar(ValueTest.Foo foo) {
+    return helper(foo);
+  }
+
+  private static ValueTest.Foo helper(ValueTest.Foo foo) {
+    return foo;
+  }
+}
@@ -7,8 +7,16 @@ import org.jspecify.annotations.NullMarked;
 import org.jspecify.annotations.NullUnmarked;
 import org.jspecify.annotations.Nullable;
 import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -16,6 +24,7 @@ import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.objectweb.asm.Opcodes.ASM9;
 
 @NullMarked
 public class ValueTest {
@@ -60,6 +69,58 @@ public class ValueTest {
     assertThrows(NullPointerException.class, () -> container.fooNonNull = null);
   }
 
+  @Test
+  public void containerWriteNullOnOneBranch() {
+    class BranchContainer {
+      Foo fooNonNull = new Foo(0);
+
+      void store(boolean flag) {
+        this.fooNonNull = flag ? new Foo(1) : null;
+      }
+    }
+
+    var container = new BranchContainer();
+    container.store(true);
+    assertAll(
+        () -> assertEquals(new Foo(1), container.fooNonNull),
+        () -> assertThrows(NullPointerException.class, () -> container.store(false))
+    );
+  }
+
+  @Test
+  public void containerWriteRequireNonNullWithMessage() {
+    class RequireContainer {
+      Foo fooNonNull = new Foo(0);
+
+      void store(@Nullable Foo foo) {
+        this.fooNonNull = Objects.requireNonNull(foo, "foo is null");
+      }
+    }
+
+    var container = new RequireContainer();
+    container.store(new Foo(2));
+    assertAll(
+        () -> assertEquals(new Foo(2), container.fooNonNull),
+        () -> assertEquals("foo is null",
+            assertThrows(NullPointerException.class, () -> container.store(null)).getMessage())
+    );
+  }
+
+  @Test
+  public void containerWriteReassignedParameter() {
+    class ReassignContainer {
+      Foo fooNonNull = new Foo(0);
+
+      void store(Foo foo) {
+        foo = null;
+        this.fooNonNull = foo;
+      }
+    }
+
+    var container = new ReassignContainer();
+    assertThrows(NullPointerException.class, () -> container.store(new Foo(3)));
+  }
+
   @Test
   public void nonNull() {
     record BarNonNull() {
@@ -81,6 +142,96 @@ public class ValueTest {
     );
   }
 
+  @Test
+  public void nonNullPrivateHelper() {
+    record BarHelper() {
+      static int bar(Foo foo) {
+        return helper(foo, new Foo(1));
+      }
+
+      private static int helper(Foo foo, Foo foo2) {
+        return foo.value() + foo2.value();
+      }
+    }
+
+    assertAll(
+        () -> assertEquals(43, BarHelper.bar(new Foo(42))),
+        () -> assertThrows(NullPointerException.class, () -> BarHelper.bar(null))
+    );
+  }
+
+  private static Map<String, Integer> requireNonNullCounts(Class<?> type) throws IOException {
+    var counts = new TreeMap<String, Integer>();
+    byte[] bytecode;
+    try(var input = type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class")) {
+      bytecode = Objects.requireNonNull(input).readAllBytes();
+    }
+    new ClassReader(bytecode).accept(new ClassVisitor(ASM9) {
+      @Override
+      public MethodVisitor visitMethod(int access, String methodName, String methodDescriptor, @Nullable String signature, String @Nullable [] exceptions) {
+        counts.put(methodName, 0);
+        return new MethodVisitor(ASM9) {
+          @Override
+          public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (owner.equals("java/util/Objects") && name.equals("requireNonNull")) {
+              counts.merge(methodName, 1, Integer::sum);
+            }
+          }
+        };
+      }
+    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return counts;
+  }
+
+  @Test
+  public void nonNullPrivateHelperCheckRemoved() throws IOException {
+    assertAll(
+        () -> assertEquals(Map.of("<init>", 0, "bar", 1, "helper", 0), requireNonNullCounts(PrivateHelper.class)),
+        () -> assertEquals(new Foo(42), PrivateHelper.bar(new Foo(42))),
+        () -> assertThrows(NullPointerException.class, () -> PrivateHelper.bar(null))
+    );
+  }
+
+  static class NestOuter {
+    static Foo run(Foo foo) {
+      return helper(foo);
+    }
+
+    private static Foo helper(Foo foo) {
+      return foo;
+    }
+
+    static class Inner {
+      Foo run() {
+        return helper(null);
+      }
+    }
+  }
+
+  @Test
+  public void nonNullPrivateHelperNestmateCaller() throws IOException {
+    assertAll(
+        () -> assertEquals(Map.of("<init>", 0, "run", 1, "helper", 1), requireNonNullCounts(NestOuter.class)),
+        () -> assertEquals(new Foo(1), NestOuter.run(new Foo(1))),
+        () -> assertThrows(NullPointerException.class, () -> new NestOuter.Inner().run())
+    );
+  }
+
+  @Test
+  public void nonNullPrivateMethodReference() {
+    record BarReference() {
+      static UnaryOperator<Foo> operator() {
+        return BarReference::self;
+      }
+
+      private static Foo self(Foo foo) {
+        return foo;
+      }
+    }
+
+    assertThrows(NullPointerException.class, () -> BarReference.operator().apply(null));
+  }
+
   @Test
   public void nullable() {
     record BarNullable() {